@@ -1,11 +1,17 @@
 package enigma;
 
+import java.util.Arrays;
+
 import static enigma.EnigmaException.*;
 
 /* Extra Credit Only */
 
 /** An alphabet of encodable characters.  Provides a mapping from characters
- *  to and from indices into the alphabet.
+ *  to and from indices into the alphabet.  The mapping from characters
+ *  to indices is tabulated when the alphabet is created, in an array
+ *  spanning its characters if they are clustered closely enough, and
+ *  otherwise in an open-addressed hash table, so that lookups take
+ *  constant time however large the alphabet.
  *  @author Peter Sorensen
  */
 class Alphabet {
@@ -13,20 +19,72 @@ class Alphabet {
     /** String containing all the characters of this Alphabet. */
     private String _strAlpha;
 
+    /** The number of characters in this Alphabet. */
+    private final int _size;
+
+    /** If non-null, _dense[C - _base] is the index of character C, or -1
+     *  if C is not in this Alphabet. */
+    private int[] _dense;
+
+    /** The smallest character in this Alphabet, when _dense is used. */
+    private char _base;
+
+    /** Otherwise, the hash table: _values[H] is the index of the
+     *  character _keys[H], or -1 if slot H is empty. */
+    private char[] _keys;
+
+    /** Indices of the characters in _keys. */
+    private int[] _values;
+
     /** A new alphabet containing CHARS.  Character number #k has index
-     *  K (numbering from 0). No character may be duplicated. */
+     *  K (numbering from 0). No character may be duplicated.  Characters
+     *  are single UTF-16 code units, so CHARS may not contain
+     *  supplementary characters (or unpaired surrogates). */
     Alphabet(String chars) {
         _strAlpha = chars;
+        _size = chars.trim().length();
+        char lo = Character.MAX_VALUE, hi = Character.MIN_VALUE;
+        for (int i = 0; i < chars.length(); i += 1) {
+            if (Character.isSurrogate(chars.charAt(i))) {
+                throw error("alphabet may not contain supplementary "
+                            + "characters: U+%04X",
+                            chars.codePointAt(i));
+            }
+            lo = (char) Math.min(lo, chars.charAt(i));
+            hi = (char) Math.max(hi, chars.charAt(i));
+        }
+        if (hi - lo < Math.max(DENSE_SPAN, DENSE_FACTOR * chars.length())) {
+            _base = lo;
+            _dense = new int[Math.max(0, hi - lo + 1)];
+            Arrays.fill(_dense, -1);
+            for (int i = 0; i < chars.length(); i += 1) {
+                if (_dense[chars.charAt(i) - lo] < 0) {
+                    _dense[chars.charAt(i) - lo] = i;
+                }
+            }
+        } else {
+            int capacity = Integer.highestOneBit(2 * chars.length()) * 2;
+            _keys = new char[capacity];
+            _values = new int[capacity];
+            Arrays.fill(_values, -1);
+            for (int i = 0; i < chars.length(); i += 1) {
+                int h = slot(chars.charAt(i));
+                if (_values[h] < 0) {
+                    _keys[h] = chars.charAt(i);
+                    _values[h] = i;
+                }
+            }
+        }
     }
 
     /** Returns the size of the alphabet. */
     int size() {
-        return _strAlpha.trim().length();
+        return _size;
     }
 
     /** Returns true if C is in this alphabet. */
     boolean contains(char c) {
-        return _strAlpha.indexOf(c) >= 0;
+        return index(c) >= 0;
     }
 
     /** Returns character number INDEX in the alphabet, where
@@ -40,10 +98,48 @@ class Alphabet {
 
     /** Returns the index of character C, which must be in the alphabet. */
     int toInt(char c) {
-        if (_strAlpha.indexOf(c) == -1) {
+        int result = index(c);
+        if (result == -1) {
             throw error("character not in alphabet");
         }
-        return _strAlpha.indexOf(c);
+        return result;
+    }
+
+    /** Returns the index of character C, or -1 if it is not in the
+     *  alphabet. */
+    private int index(char c) {
+        if (_dense != null) {
+            int k = c - _base;
+            return k >= 0 && k < _dense.length ? _dense[k] : -1;
+        }
+        return _values[slot(c)];
+    }
+
+    /** Returns the slot of the hash table that holds C, or the empty
+     *  slot at which C would be added. */
+    private int slot(char c) {
+        int mask = _keys.length - 1;
+        int h = (c * HASH_MULTIPLIER) >>> HASH_SHIFT & mask;
+        while (_values[h] >= 0 && _keys[h] != c) {
+            h = (h + 1) & mask;
+        }
+        return h;
     }
 
+    /** Characters spanning fewer than this many code units, or fewer
+     *  than DENSE_FACTOR times the number of characters, are indexed
+     *  by an array. */
+    private static final int DENSE_SPAN = 1 << 12;
+
+    /** See DENSE_SPAN. */
+    private static final int DENSE_FACTOR = 4;
+
+    /** Fibonacci hashing multiplier (2**32 divided by the golden
+     *  ratio). */
+    private static final int HASH_MULTIPLIER = 0x9e3779b9;
+
+    /** Characters are hashed to the high-order bits of their product
+     *  with HASH_MULTIPLIER, shifted down by this much. */
+    private static final int HASH_SHIFT = 16;
+
 }
@@ -0,0 +1,351 @@
+package enigma;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
+
+/** Microbenchmarks for the hot paths of the simulator: Permutation,
+ *  Rotor and Machine conversions, over a range of alphabet sizes and
+ *  numbers of rotors.  Each benchmark is warmed up and then timed over
+ *  several iterations, reporting throughput and heap allocation per
+ *  operation.  Run with 'make bench', or as
+ *      java -cp .. enigma.Benchmarks [FILTER ...]
+ *  to run only the benchmarks whose names contain one of the FILTERs.
+ *  @author Peter Sorensen
+ */
+public class Benchmarks {
+
+    /** Run the benchmarks selected by ARGS (all, if ARGS is empty). */
+    public static void main(String... args) {
+        _filters = args;
+        System.out.printf("%-28s %6s %6s %14s %10s%n", "benchmark",
+                          "alpha", "rotors", "ops/s", "B/op");
+        for (int size : ALPHABET_SIZES) {
+            Alphabet alpha = alphabet(size);
+            Random random = new Random(size);
+            Permutation perm = new Permutation(cycle(alpha, random), alpha);
+            run("Permutation.permute", size, 0, perm::permute);
+            run("Permutation.invert", size, 0, perm::invert);
+
+            Rotor plain = new MovingRotor("R", perm, "");
+            plain.set(size / 3);
+            Rotor tabled = plain.copy();
+            if (size <= Main.MAX_TABULATED_SIZE) {
+                tabled.tabulate();
+                tabled.set(size / 3);
+            }
+            run("Rotor.convertForward", size, 0, plain::convertForward);
+            run("Rotor.convertBackward", size, 0, plain::convertBackward);
+            if (tabled.tabulated()) {
+                run("Rotor.convertForward/table", size, 0,
+                    tabled::convertForward);
+                run("Rotor.convertBackward/table", size, 0,
+                    tabled::convertBackward);
+            }
+
+            for (int rotors : ROTOR_COUNTS) {
+                Machine m = machine(alpha, rotors, random);
+                run("Machine.convert(int)", size, rotors,
+                    c -> m.convert(c % size));
+                String msg = message(alpha, MESSAGE_LENGTH, random);
+                run("Machine.convert(String)", size, rotors, MESSAGE_LENGTH,
+                    ignored -> m.convert(msg).length());
+                runLanes(m, rotors, random);
+                runRestore(m, rotors);
+            }
+        }
+    }
+
+    /** Time restoring M, which has ROTORS rotors, from a snapshot and,
+     *  for comparison, setting it up from the equivalent settings line,
+     *  when its alphabet is small enough to write one simply. */
+    private static void runRestore(Machine m, int rotors) {
+        Machine.Snapshot snap = m.snapshot();
+        Alphabet alpha = m.alphabet();
+        run("Machine.restore", alpha.size(), rotors, ignored -> {
+            m.restore(snap);
+            return 0;
+        });
+        if (alpha.size() != UPPER_SIZE) {
+            return;
+        }
+        StringBuilder settings = new StringBuilder("*");
+        for (Rotor rotor : m.getSlots()) {
+            settings.append(' ').append(rotor.name());
+        }
+        settings.append(' ');
+        for (int i = 1; i < rotors; i += 1) {
+            settings.append(alpha.toChar(m.getSlots()[i].setting()));
+        }
+        settings.append(" (AB) (CD) (EF)");
+        String line = settings.toString();
+        run("LineProcessor.setUp", alpha.size(), rotors, ignored -> {
+            LineProcessor.setUp(m, line);
+            return 0;
+        });
+    }
+
+    /** Time the conversion of LANES short messages with separate keys
+     *  by a LaneEngine and, for comparison, by a MachineState per
+     *  message, for machines like M, which has ROTORS rotors, using
+     *  RANDOM to choose messages and keys. */
+    private static void runLanes(Machine m, int rotors, Random random) {
+        MachineSpec spec = new MachineSpec(m);
+        int size = spec.alphabet().size();
+        LaneEngine engine = new LaneEngine(spec, LANES);
+        MachineState[] states = new MachineState[LANES];
+        int[][] msgs = new int[LANES][SHORT_LENGTH],
+            out = new int[LANES][SHORT_LENGTH];
+        for (int lane = 0; lane < LANES; lane += 1) {
+            states[lane] = spec.newState();
+            int[] posns = new int[rotors];
+            for (int k = 1; k < rotors; k += 1) {
+                posns[k] = random.nextInt(size);
+            }
+            states[lane].setPositions(posns);
+            engine.setKey(lane, states[lane]);
+            for (int i = 0; i < SHORT_LENGTH; i += 1) {
+                msgs[lane][i] = random.nextInt(size);
+            }
+        }
+        run("LaneEngine.convert", size, rotors, LANES * SHORT_LENGTH,
+            ignored -> {
+                engine.convert(msgs, out);
+                return out[0][0];
+            });
+        run("MachineState.convert", size, rotors, LANES * SHORT_LENGTH,
+            ignored -> {
+                for (int lane = 0; lane < LANES; lane += 1) {
+                    MachineState state = states[lane];
+                    for (int i = 0; i < SHORT_LENGTH; i += 1) {
+                        out[lane][i] = state.convert(msgs[lane][i]);
+                    }
+                }
+                return out[0][0];
+            });
+    }
+
+    /** Time OP, named NAME, for an alphabet of SIZE characters and a
+     *  machine with ROTORS rotors (0 if not applicable). */
+    private static void run(String name, int size, int rotors,
+                            IntUnaryOperator op) {
+        run(name, size, rotors, 1, op);
+    }
+
+    /** Time OP, named NAME, for an alphabet of SIZE characters and a
+     *  machine with ROTORS rotors, where each call of OP performs UNITS
+     *  operations. */
+    private static void run(String name, int size, int rotors, int units,
+                            IntUnaryOperator op) {
+        if (!selected(name)) {
+            return;
+        }
+        for (int i = 0; i < WARMUP_ITERATIONS; i += 1) {
+            iteration(op);
+        }
+        double opsPerSec = 0, bytesPerOp = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i += 1) {
+            double[] result = iteration(op);
+            opsPerSec += result[0] * units / MEASURED_ITERATIONS;
+            bytesPerOp += result[1] / units / MEASURED_ITERATIONS;
+        }
+        System.out.printf("%-28s %6d %6s %14.0f %10.1f%n", name, size,
+                          rotors == 0 ? "-" : Integer.toString(rotors),
+                          opsPerSec, bytesPerOp);
+    }
+
+    /** Call OP repeatedly for about ITERATION_NANOS nanoseconds, returning
+     *  the calls per second and the bytes allocated per call. */
+    private static double[] iteration(IntUnaryOperator op) {
+        long calls = 0, bytes = allocated();
+        long start = System.nanoTime(), end = start + ITERATION_NANOS;
+        long now;
+        int c = 0;
+        do {
+            for (int i = 0; i < BATCH; i += 1) {
+                c = op.applyAsInt(c);
+            }
+            calls += BATCH;
+            now = System.nanoTime();
+        } while (now < end);
+        _sink += c;
+        bytes = allocated() - bytes;
+        return new double[] {
+            calls * 1e9 / (now - start), (double) bytes / calls
+        };
+    }
+
+    /** Return the number of bytes allocated so far by this thread, or 0
+     *  if that is not available. */
+    private static long allocated() {
+        java.lang.management.ThreadMXBean bean =
+            ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /** Return true iff the benchmark NAME was selected. */
+    private static boolean selected(String name) {
+        if (_filters.length == 0) {
+            return true;
+        }
+        for (String filter : _filters) {
+            if (name.contains(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return an alphabet of SIZE characters: upper-case letters,
+     *  printable ASCII, or consecutive characters from the Latin
+     *  Extended or CJK ranges. */
+    static Alphabet alphabet(int size) {
+        if (size == UPPER_SIZE) {
+            return new UpperCaseAlphabet();
+        }
+        char first = size <= ASCII_SIZE ? '!'
+            : size <= LATIN_SIZE ? '\u0100' : '\u4e00';
+        StringBuilder chars = new StringBuilder();
+        for (int i = 0; i < size; i += 1) {
+            chars.append((char) (first + i));
+        }
+        return new Alphabet(chars.toString());
+    }
+
+    /** Return a random permutation of ALPHA, chosen using RANDOM, in
+     *  cycle notation. */
+    static String cycle(Alphabet alpha, Random random) {
+        int[] order = shuffle(alpha.size(), random);
+        StringBuilder result = new StringBuilder("(");
+        for (int k : order) {
+            result.append(alpha.toChar(k));
+        }
+        return result.append(")").toString();
+    }
+
+    /** Return a random pairing of ALPHA (whose size must be even), chosen
+     *  using RANDOM, in cycle notation. */
+    static String pairs(Alphabet alpha, Random random) {
+        int[] order = shuffle(alpha.size(), random);
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i + 1 < order.length; i += 2) {
+            result.append('(').append(alpha.toChar(order[i]))
+                .append(alpha.toChar(order[i + 1])).append(") ");
+        }
+        return result.toString().trim();
+    }
+
+    /** Return a random permutation of 0 .. N-1 chosen using RANDOM. */
+    private static int[] shuffle(int n, Random random) {
+        int[] result = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            result[i] = i;
+        }
+        for (int i = n - 1; i > 0; i -= 1) {
+            int j = random.nextInt(i + 1);
+            int t = result[i];
+            result[i] = result[j];
+            result[j] = t;
+        }
+        return result;
+    }
+
+    /** Return a machine over ALPHA with ROTORS slots: a reflector, one
+     *  fixed rotor and ROTORS - 2 moving rotors with random wirings and
+     *  one notch each, chosen using RANDOM, at random settings and with a
+     *  plugboard of random pairs. */
+    static Machine machine(Alphabet alpha, int rotors, Random random) {
+        ArrayList<Rotor> all = new ArrayList<>();
+        String[] names = new String[rotors];
+        StringBuilder setting = new StringBuilder();
+        for (int i = 0; i < rotors; i += 1) {
+            names[i] = "R" + i;
+            Rotor rotor;
+            if (i == 0) {
+                rotor = new Reflector(names[i],
+                    new Permutation(pairs(alpha, random), alpha));
+            } else if (i == 1) {
+                rotor = new FixedRotor(names[i],
+                    new Permutation(cycle(alpha, random), alpha));
+            } else {
+                rotor = new MovingRotor(names[i],
+                    new Permutation(cycle(alpha, random), alpha),
+                    String.valueOf(alpha.toChar(random.nextInt(
+                        alpha.size()))));
+            }
+            if (alpha.size() <= Main.MAX_TABULATED_SIZE) {
+                rotor.tabulate();
+            }
+            all.add(rotor);
+            if (i > 0) {
+                setting.append(alpha.toChar(random.nextInt(alpha.size())));
+            }
+        }
+        Machine m = new Machine(alpha, rotors, rotors - 2, all);
+        m.insertRotors(names);
+        m.setRotors(setting.toString());
+        m.setPlugboard(new Permutation(pairs(alpha, random), alpha));
+        return m;
+    }
+
+    /** Return a random message of LEN characters of ALPHA that are not
+     *  changed by upper-casing, chosen using RANDOM. */
+    static String message(Alphabet alpha, int len, Random random) {
+        StringBuilder result = new StringBuilder();
+        while (result.length() < len) {
+            char c = alpha.toChar(random.nextInt(alpha.size()));
+            if (Character.toUpperCase(c) == c) {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /** Alphabet sizes benchmarked. */
+    private static final int[] ALPHABET_SIZES = { 26, 94, 256, 4096 };
+
+    /** Numbers of rotor slots benchmarked. */
+    private static final int[] ROTOR_COUNTS = { 5, 8 };
+
+    /** Size of the upper-case alphabet. */
+    private static final int UPPER_SIZE = 26;
+
+    /** Number of printable, non-blank ASCII characters. */
+    private static final int ASCII_SIZE = 94;
+
+    /** Largest alphabet drawn from the Latin Extended range. */
+    private static final int LATIN_SIZE = 256;
+
+    /** Length of the messages converted by Machine.convert(String). */
+    private static final int MESSAGE_LENGTH = 10000;
+
+    /** Number of messages converted at once by LaneEngine. */
+    private static final int LANES = 32;
+
+    /** Length of the messages converted by LaneEngine. */
+    private static final int SHORT_LENGTH = 64;
+
+    /** Number of untimed iterations before measurement. */
+    private static final int WARMUP_ITERATIONS = 3;
+
+    /** Number of timed iterations. */
+    private static final int MEASURED_ITERATIONS = 5;
+
+    /** Length of each iteration. */
+    private static final long ITERATION_NANOS = 200_000_000L;
+
+    /** Number of calls between checks of the clock. */
+    private static final int BATCH = 64;
+
+    /** Benchmark name filters. */
+    private static String[] _filters;
+
+    /** Accumulates results so that they are not optimized away. */
+    static volatile int _sink;
+
+}
@@ -0,0 +1,422 @@
+package enigma;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static enigma.EnigmaException.*;
+
+/** A known-plaintext attack on an Enigma machine, after Turing's Bombe.
+ *  A crib (text believed to be the decryption of part of a ciphertext)
+ *  pairs each of its characters with a ciphertext character at a known
+ *  keystroke; these pairs form the "menu", a graph whose nodes are
+ *  characters and whose edges are labeled with keystrokes.  For a
+ *  given rotor order and starting setting, the rotors apply a known
+ *  substitution S at each keystroke, so if character A is plugged to X
+ *  and the menu joins A to B at keystroke K, B must be plugged to S(X).
+ *  Starting from a guess for the plug of one menu character, these
+ *  implications are followed until they contradict one another (or the
+ *  requirement that the plugboard be a set of swaps).  Settings for
+ *  which some guess survives are "stops", giving candidate keys and
+ *  part of the plugboard.  The rotor orders are searched concurrently.
+ *  @author Peter Sorensen
+ */
+class Bombe {
+
+    /** A Bombe for the rotors available to M, which has been configured
+     *  but need not have had its rotors inserted, testing the hypothesis
+     *  that CRIB is the decryption of the characters of CIPHERTEXT
+     *  starting at OFFSET.  Characters of CIPHERTEXT not in the alphabet
+     *  (such as blanks) are ignored, and do not count toward OFFSET. */
+    Bombe(Machine m, String ciphertext, String crib, int offset) {
+        _m = m;
+        _alphabet = m.alphabet();
+        _size = _alphabet.size();
+        int[] cipher = indices(_alphabet, ciphertext);
+        _crib = indices(_alphabet, crib);
+        _offset = offset;
+        if (_crib.length == 0 || offset < 0
+            || offset + _crib.length > cipher.length) {
+            throw error("crib does not lie within the ciphertext");
+        }
+        _adjacent = new int[_size][];
+        _keystrokes = new int[_size][];
+        int[] degree = new int[_size];
+        for (int j = 0; j < _crib.length; j += 1) {
+            int a = _crib[j], b = cipher[offset + j];
+            if (a == b) {
+                throw error("no character encrypts to itself, so the "
+                            + "crib cannot be at %d", offset);
+            }
+            degree[a] += 1;
+            degree[b] += 1;
+        }
+        for (int c = 0; c < _size; c += 1) {
+            _adjacent[c] = new int[degree[c]];
+            _keystrokes[c] = new int[degree[c]];
+            if (degree[c] > degree[_test]) {
+                _test = c;
+            }
+            degree[c] = 0;
+        }
+        for (int j = 0; j < _crib.length; j += 1) {
+            int a = _crib[j], b = cipher[offset + j];
+            _adjacent[a][degree[a]] = b;
+            _keystrokes[a][degree[a]++] = j;
+            _adjacent[b][degree[b]] = a;
+            _keystrokes[b][degree[b]++] = j;
+        }
+    }
+
+    /** Return the offsets in CIPHERTEXT (counting only characters in
+     *  the alphabet of M) at which CRIB could lie, given that no
+     *  character encrypts to itself. */
+    static List<Integer> alignments(Machine m, String ciphertext,
+                                    String crib) {
+        int[] cipher = indices(m.alphabet(), ciphertext),
+            text = indices(m.alphabet(), crib);
+        List<Integer> result = new ArrayList<>();
+        for (int k = 0; k + text.length <= cipher.length; k += 1) {
+            boolean possible = true;
+            for (int j = 0; j < text.length && possible; j += 1) {
+                possible = text[j] != cipher[k + j];
+            }
+            if (possible) {
+                result.add(k);
+            }
+        }
+        return result;
+    }
+
+    /** Return the stops found by trying every rotor order and starting
+     *  setting, with the rotor orders divided among the threads of
+     *  POOL. */
+    List<Stop> run(ExecutorService pool) {
+        List<Callable<List<Stop>>> tasks = new ArrayList<>();
+        for (String[] order : KeySearch.orders(_m)) {
+            tasks.add(() -> run(order));
+        }
+        List<Stop> result = new ArrayList<>();
+        try {
+            for (Future<List<Stop>> stops : pool.invokeAll(tasks)) {
+                result.addAll(stops.get());
+            }
+        } catch (InterruptedException excp) {
+            throw error("interrupted");
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw error("%s", excp.getCause());
+        }
+        return result;
+    }
+
+    /** Return the stops for every starting setting of the rotors named
+     *  by ORDER (indexed by slot). */
+    List<Stop> run(String[] order) {
+        Machine m = _m.copy();
+        m.insertRotors(order);
+        return new Scan(new MachineSpec(m), order).run();
+    }
+
+    /** The search of all starting settings of one rotor order. */
+    private final class Scan {
+
+        /** A scan of the machine described by SPEC, whose rotors are
+         *  named by ORDER. */
+        Scan(MachineSpec spec, String[] order) {
+            _spec = spec;
+            _order = order;
+            _slots = spec.numRotors();
+            long settings = KeySearch.settings(_size, _slots);
+            _settings = settings;
+            if (settings <= MAX_TABLE / _size) {
+                _table = new char[(int) settings * _size];
+                _filled = new boolean[(int) settings];
+            }
+            _plug = new int[_size];
+            _refuted = new boolean[_size];
+            Arrays.fill(_plug, -1);
+            _queue = new int[2 * _size];
+            _rows = new long[_crib.length];
+            _bases = new int[_crib.length];
+            _posns = new int[_slots];
+        }
+
+        /** Return the stops for all starting settings. */
+        List<Stop> run() {
+            List<Stop> result = new ArrayList<>();
+            int[] start = new int[_slots];
+            for (long s = 0; s < _settings; s += 1) {
+                long t = s;
+                for (int i = _slots - 1; i > 0; i -= 1) {
+                    start[i] = (int) (t % _size);
+                    t /= _size;
+                }
+                System.arraycopy(start, 0, _posns, 0, _slots);
+                if (_offset <= MAX_STEPPED) {
+                    for (int j = 0; j < _offset; j += 1) {
+                        _spec.step(_posns);
+                    }
+                } else {
+                    _spec.advance(_posns, _offset);
+                }
+                for (int j = 0; j < _crib.length; j += 1) {
+                    _spec.step(_posns);
+                    _rows[j] = row(_posns);
+                    if (_table != null) {
+                        _bases[j] = fill((int) _rows[j]);
+                    }
+                }
+                Arrays.fill(_refuted, false);
+                for (int guess = 0; guess < _size; guess += 1) {
+                    if (!_refuted[guess] && consistent(guess)) {
+                        result.add(new Stop(_order, setting(start),
+                                            plugboard()));
+                    }
+                }
+            }
+            return result;
+        }
+
+        /** Return true iff the hypothesis that my test character is
+         *  plugged to GUESS leads to no contradiction, leaving the
+         *  implied plug connections in _plug (-1 where unknown).  Each
+         *  step of the deduction can be reversed, so a contradiction
+         *  also refutes any other guess for the test character that the
+         *  deduction reached; these are marked in _refuted. */
+        private boolean consistent(int guess) {
+            for (int i = 0; i < _tail; i += 1) {
+                _plug[_queue[i]] = -1;
+            }
+            _head = _tail = 0;
+            if (!connect(_test, guess)) {
+                return false;
+            }
+            while (_head < _tail) {
+                int a = _queue[_head++], x = _plug[a];
+                for (int e = 0; e < _adjacent[a].length; e += 1) {
+                    int b = _adjacent[a][e],
+                        y = substitute(_keystrokes[a][e], x);
+                    if (!connect(b, y)) {
+                        if (b == _test) {
+                            _refuted[y] = true;
+                        } else if (y == _test) {
+                            _refuted[b] = true;
+                        }
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /** Record that A is plugged to X, queueing A and (if it is in
+         *  the menu) X, whose plugs are now known.  Returns false if this
+         *  contradicts the connections already recorded. */
+        private boolean connect(int a, int x) {
+            if (_plug[a] >= 0 || _plug[x] >= 0) {
+                return _plug[a] == x && _plug[x] == a;
+            }
+            _plug[a] = x;
+            _plug[x] = a;
+            _queue[_tail++] = a;
+            if (x != a) {
+                _queue[_tail++] = x;
+            }
+            return true;
+        }
+
+        /** Return the result of passing C through the rotors (but not the
+         *  plugboard) at crib keystroke J. */
+        private int substitute(int j, int c) {
+            if (_table == null) {
+                decode(_rows[j], _posns);
+                return _spec.convert(_posns, _identity, c);
+            }
+            return _table[_bases[j] + c];
+        }
+
+        /** Compute row R of _table if that has not been done, and return
+         *  the index of its first entry. */
+        private int fill(int r) {
+            int base = r * _size;
+            if (!_filled[r]) {
+                decode(r, _posns);
+                for (int d = 0; d < _size; d += 1) {
+                    _table[base + d] =
+                        (char) _spec.convert(_posns, _identity, d);
+                }
+                _filled[r] = true;
+            }
+            return base;
+        }
+
+        /** Return the number of the rotor settings POSNS. */
+        private long row(int[] posns) {
+            long result = 0;
+            for (int i = 1; i < _slots; i += 1) {
+                result = result * _size + posns[i];
+            }
+            return result;
+        }
+
+        /** Set POSNS to the rotor settings numbered ROW. */
+        private void decode(long row, int[] posns) {
+            for (int i = _slots - 1; i > 0; i -= 1) {
+                posns[i] = (int) (row % _size);
+                row /= _size;
+            }
+        }
+
+        /** Return the plug connections in _plug, in cycle notation. */
+        private String plugboard() {
+            StringBuilder result = new StringBuilder();
+            for (int a = 0; a < _size; a += 1) {
+                if (_plug[a] > a) {
+                    result.append('(').append(_alphabet.toChar(a))
+                        .append(_alphabet.toChar(_plug[a])).append(") ");
+                }
+            }
+            return result.toString().trim();
+        }
+
+        /** The machine being tested. */
+        private final MachineSpec _spec;
+        /** Names of its rotors. */
+        private final String[] _order;
+        /** Its number of slots. */
+        private final int _slots;
+        /** Number of its rotor settings. */
+        private final long _settings;
+        /** If non-null, row R holds the substitutions for the rotor
+         *  settings numbered R, once _filled[R]. */
+        private char[] _table;
+        /** Marks the rows of _table that have been computed. */
+        private boolean[] _filled;
+        /** The rotor settings number at each crib keystroke. */
+        private final long[] _rows;
+        /** The index in _table of the row for each crib keystroke. */
+        private final int[] _bases;
+        /** Guesses for the test character's plug already refuted at the
+         *  current starting setting. */
+        private final boolean[] _refuted;
+        /** Plug connections implied by the current guess. */
+        private final int[] _plug;
+        /** Characters whose plugs are known: all of _queue[0 .. _tail-1],
+         *  of which those from _head on have not yet been followed. */
+        private final int[] _queue;
+        /** Bounds of the queued characters. */
+        private int _head, _tail;
+        /** Scratch rotor settings. */
+        private final int[] _posns;
+        /** A plugboard with no connections. */
+        private final Permutation _identity = new Permutation("", _alphabet);
+    }
+
+    /** A candidate key found by the Bombe. */
+    static final class Stop {
+
+        /** A stop with rotors ORDER at starting settings SETTING and the
+         *  plug connections PLUGBOARD, in cycle notation. */
+        Stop(String[] order, String setting, String plugboard) {
+            _order = order;
+            _setting = setting;
+            _plugboard = plugboard;
+        }
+
+        /** Return the names of my rotors, indexed by slot. */
+        String[] order() {
+            return _order.clone();
+        }
+
+        /** Return my rotor settings, as for Machine.setRotors. */
+        String setting() {
+            return _setting;
+        }
+
+        /** Return the plug connections implied by my key, in cycle
+         *  notation. */
+        String plugboard() {
+            return _plugboard;
+        }
+
+        /** Return a settings line selecting my key. */
+        @Override
+        public String toString() {
+            return ("* " + String.join(" ", _order) + " " + _setting + " "
+                    + _plugboard).trim();
+        }
+
+        /** Rotor names. */
+        private final String[] _order;
+        /** Rotor settings. */
+        private final String _setting;
+        /** Plug connections. */
+        private final String _plugboard;
+    }
+
+    /** Return the indices of the characters of TEXT that are in
+     *  ALPHABET (after conversion to upper case). */
+    private static int[] indices(Alphabet alphabet, String text) {
+        int[] result = new int[text.length()];
+        int n = 0;
+        for (int i = 0; i < text.length(); i += 1) {
+            char c = Character.toUpperCase(text.charAt(i));
+            if (alphabet.contains(c)) {
+                result[n++] = alphabet.toInt(c);
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /** Return the settings POSNS of the rotors other than the reflector,
+     *  as for Machine.setRotors. */
+    private String setting(int[] posns) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 1; i < posns.length; i += 1) {
+            result.append(_alphabet.toChar(posns[i]));
+        }
+        return result.toString();
+    }
+
+    /** Largest number of entries in the substitution table kept for each
+     *  rotor order. */
+    static final long MAX_TABLE = 1 << 24;
+
+    /** Largest crib offset reached by stepping the rotors rather than
+     *  by computing their positions directly. */
+    static final int MAX_STEPPED = 1 << 10;
+
+    /** The machine whose rotors are searched. */
+    private final Machine _m;
+
+    /** Its alphabet. */
+    private final Alphabet _alphabet;
+
+    /** Size of the alphabet. */
+    private final int _size;
+
+    /** The crib, as alphabet indices. */
+    private final int[] _crib;
+
+    /** Number of keystrokes preceding the crib. */
+    private final int _offset;
+
+    /** _adjacent[C] lists the characters joined to C in the menu. */
+    private final int[][] _adjacent;
+
+    /** _keystrokes[C][E] is the crib keystroke at which C is joined to
+     *  _adjacent[C][E]. */
+    private final int[][] _keystrokes;
+
+    /** The menu character whose plug is guessed: one with the most
+     *  connections. */
+    private int _test;
+
+}
@@ -0,0 +1,55 @@
+package enigma;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/** A ByteWriter that collects its output in a buffer and writes it to a
+ *  channel whenever the buffer fills.
+ *  @author Peter Sorensen
+ */
+class ByteChannelWriter extends ByteWriter {
+
+    /** A writer onto CHANNEL with a buffer of SIZE bytes. */
+    ByteChannelWriter(WritableByteChannel channel, int size) {
+        _channel = channel;
+        _buf = ByteBuffer.allocate(size);
+    }
+
+    @Override
+    ByteBuffer reserve(int n) throws IOException {
+        if (_buf.remaining() < n) {
+            flush();
+            if (_buf.capacity() < n) {
+                _buf = ByteBuffer.allocate(n);
+            }
+        }
+        return _buf;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        _buf.flip();
+        while (_buf.hasRemaining()) {
+            _channel.write(_buf);
+        }
+        _buf.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (_channel.isOpen()) {
+            flush();
+            _channel.close();
+        }
+    }
+
+    /** Destination of my output. */
+    private final WritableByteChannel _channel;
+
+    /** Output not yet written to _channel, from its start to its
+     *  position. */
+    private ByteBuffer _buf;
+
+}
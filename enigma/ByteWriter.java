@@ -0,0 +1,28 @@
+package enigma;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import java.nio.ByteBuffer;
+
+/** A Writer of single-byte characters whose clients may also put bytes
+ *  directly into its buffer, avoiding any character encoding.
+ *  @author Peter Sorensen
+ */
+abstract class ByteWriter extends Writer {
+
+    /** Return a buffer into which at least N bytes may be put, starting
+     *  at its position, which will then be part of my output.  The
+     *  buffer is valid only until the next call to one of my
+     *  methods. */
+    abstract ByteBuffer reserve(int n) throws IOException;
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        ByteBuffer buf = reserve(len);
+        for (int i = off; i < off + len; i += 1) {
+            buf.put((byte) cbuf[i]);
+        }
+    }
+
+}
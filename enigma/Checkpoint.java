@@ -0,0 +1,180 @@
+package enigma;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+import static enigma.EnigmaException.*;
+
+/** The state of a run over an input file at some point, from which the
+ *  run may be resumed after a failure: how many bytes of input had been
+ *  processed and of output written, and the state of the LineProcessor
+ *  and its machine at that point (see LineProcessor.checkpoint).  Checkpoints
+ *  are stored as small properties files.
+ *  @author Peter Sorensen
+ */
+class Checkpoint {
+
+    /** A checkpoint taken after INPUT bytes of input have been processed
+     *  and OUTPUT bytes of output written, when a LineProcessor was in
+     *  line state LINESTATE with pending text PENDING, AFTERCR iff the
+     *  last input byte was a carriage return, and its machine was last
+     *  set up by the settings line SETTINGS (null if never), and had
+     *  rotor settings POSITIONS (indexed by slot) and position GROUPED
+     *  in its output group. */
+    Checkpoint(long input, long output, int lineState, String pending,
+               boolean afterCR, String settings, int[] positions,
+               int grouped) {
+        _input = input;
+        _output = output;
+        _lineState = lineState;
+        _pending = pending;
+        _afterCR = afterCR;
+        _settings = settings;
+        _positions = positions.clone();
+        _grouped = grouped;
+    }
+
+    /** Return the number of input bytes processed. */
+    long input() {
+        return _input;
+    }
+
+    /** Return the number of output bytes written. */
+    long output() {
+        return _output;
+    }
+
+    /** Return the LineProcessor's line state. */
+    int lineState() {
+        return _lineState;
+    }
+
+    /** Return the LineProcessor's pending text. */
+    String pending() {
+        return _pending;
+    }
+
+    /** Return true iff the last input byte was a carriage return. */
+    boolean afterCR() {
+        return _afterCR;
+    }
+
+    /** Return the settings line that last set up the machine, or null
+     *  if none has. */
+    String settings() {
+        return _settings;
+    }
+
+    /** Return the machine's rotor settings, indexed by slot. */
+    int[] positions() {
+        return _positions.clone();
+    }
+
+    /** Return the machine's position in its current output group. */
+    int grouped() {
+        return _grouped;
+    }
+
+    /** Write me to FILE, replacing its previous contents atomically, so
+     *  that FILE holds either the previous checkpoint or me even if the
+     *  process dies part way.  Returns once I have reached the disk. */
+    void write(Path file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("version", Integer.toString(VERSION));
+        props.setProperty("input", Long.toString(_input));
+        props.setProperty("output", Long.toString(_output));
+        props.setProperty("lineState", Integer.toString(_lineState));
+        props.setProperty("pending", _pending);
+        props.setProperty("afterCR", Boolean.toString(_afterCR));
+        props.setProperty("settings", _settings == null ? "" : _settings);
+        props.setProperty("grouped", Integer.toString(_grouped));
+        StringBuilder posns = new StringBuilder();
+        for (int posn : _positions) {
+            posns.append(posns.length() == 0 ? "" : " ").append(posn);
+        }
+        props.setProperty("positions", posns.toString());
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp,
+                 StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = Channels.newOutputStream(channel);
+            props.store(out, "enigma checkpoint");
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Return the checkpoint stored in FILE. */
+    static Checkpoint read(Path file) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        }
+        try {
+            if (Integer.parseInt(props.getProperty("version")) != VERSION) {
+                throw error("unsupported checkpoint version");
+            }
+            String posns = props.getProperty("positions").trim();
+            String[] fields = posns.isEmpty() ? new String[0]
+                : posns.split(" ");
+            int[] positions = new int[fields.length];
+            for (int i = 0; i < fields.length; i += 1) {
+                positions[i] = Integer.parseInt(fields[i]);
+            }
+            String settings = props.getProperty("settings");
+            String pending = props.getProperty("pending");
+            if (pending == null) {
+                throw error("checkpoint %s is malformed", file);
+            }
+            return new Checkpoint(
+                Long.parseLong(props.getProperty("input")),
+                Long.parseLong(props.getProperty("output")),
+                Integer.parseInt(props.getProperty("lineState")),
+                pending, Boolean.parseBoolean(props.getProperty("afterCR")),
+                settings.isEmpty() ? null : settings, positions,
+                Integer.parseInt(props.getProperty("grouped")));
+        } catch (NumberFormatException | NullPointerException excp) {
+            throw error("checkpoint %s is malformed", file);
+        }
+    }
+
+    /** Format version written. */
+    static final int VERSION = 1;
+
+    /** Number of input bytes processed. */
+    private final long _input;
+
+    /** Number of output bytes written. */
+    private final long _output;
+
+    /** The LineProcessor's line state. */
+    private final int _lineState;
+
+    /** The LineProcessor's pending text. */
+    private final String _pending;
+
+    /** True iff the last input byte was a carriage return. */
+    private final boolean _afterCR;
+
+    /** The settings line that last set up the machine, or null. */
+    private final String _settings;
+
+    /** The machine's rotor settings, indexed by slot. */
+    private final int[] _positions;
+
+    /** The machine's position in its current output group. */
+    private final int _grouped;
+
+}
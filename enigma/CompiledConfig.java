@@ -0,0 +1,157 @@
+package enigma;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+
+import static enigma.EnigmaException.*;
+
+/** Reads and writes machine configurations in a compact binary form, so
+ *  that they may be loaded without parsing.  A compiled configuration
+ *  holds, as big-endian ints and chars,
+ *      the magic number MAGIC and the format VERSION;
+ *      the alphabet size, followed by the alphabet's characters;
+ *      the numbers of rotor slots and pawls, and the number of rotors;
+ *  and then, for each rotor,
+ *      its type ('M', 'N', or 'R') as a char;
+ *      the length of its name, followed by the name's characters;
+ *      its number of notches, followed by their indices;
+ *      the image of each index under its permutation.
+ *  @author Peter Sorensen
+ */
+class CompiledConfig {
+
+    /** Write the configuration of M (its alphabet, numbers of slots and
+     *  pawls, and available rotors) to OUT, in compiled form. */
+    static void write(Machine m, FileChannel out) throws IOException {
+        Alphabet alpha = m.alphabet();
+        int size = alpha.size();
+        Collection<Rotor> rotors = m.allRotors();
+        int bytes = 6 * Integer.BYTES + size * Character.BYTES;
+        for (Rotor rotor : rotors) {
+            bytes += Character.BYTES + 2 * Integer.BYTES
+                + (rotor.name().length() + size) * Character.BYTES;
+            if (rotor instanceof MovingRotor) {
+                bytes += ((MovingRotor) rotor).notches().cardinality()
+                    * Character.BYTES;
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(bytes);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(size);
+        for (int i = 0; i < size; i += 1) {
+            buf.putChar(alpha.toChar(i));
+        }
+        buf.putInt(m.numRotors()).putInt(m.numPawls()).putInt(rotors.size());
+        for (Rotor rotor : rotors) {
+            BitSet notches = new BitSet();
+            if (rotor instanceof MovingRotor) {
+                buf.putChar('M');
+                notches = ((MovingRotor) rotor).notches();
+            } else if (rotor instanceof Reflector) {
+                buf.putChar('R');
+            } else {
+                buf.putChar('N');
+            }
+            buf.putInt(rotor.name().length());
+            for (int i = 0; i < rotor.name().length(); i += 1) {
+                buf.putChar(rotor.name().charAt(i));
+            }
+            buf.putInt(notches.cardinality());
+            for (int k = notches.nextSetBit(0); k >= 0;
+                 k = notches.nextSetBit(k + 1)) {
+                buf.putChar((char) k);
+            }
+            Permutation perm = rotor.permutation();
+            for (int i = 0; i < size; i += 1) {
+                buf.putChar((char) perm.permute(i));
+            }
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    /** Return true iff the file open on IN holds a compiled
+     *  configuration. */
+    static boolean isCompiled(FileChannel in) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+        while (magic.hasRemaining()
+               && in.read(magic, magic.position()) > 0) {
+            continue;
+        }
+        return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+    }
+
+    /** Return a machine with the configuration compiled into the file
+     *  open on IN, which is mapped into memory to be read. */
+    static Machine read(FileChannel in) throws IOException {
+        ByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        try {
+            if (buf.getInt() != MAGIC) {
+                throw error("not a compiled configuration");
+            }
+            if (buf.getInt() != VERSION) {
+                throw error("unsupported compiled configuration version");
+            }
+            Alphabet alpha = new Alphabet(readString(buf));
+            int size = alpha.size();
+            int numRotors = buf.getInt(), numPawls = buf.getInt(),
+                count = buf.getInt();
+            ArrayList<Rotor> rotors = new ArrayList<>();
+            for (int r = 0; r < count; r += 1) {
+                char type = buf.getChar();
+                String name = readString(buf);
+                StringBuilder notches = new StringBuilder();
+                for (int k = buf.getInt(); k > 0; k -= 1) {
+                    notches.append(alpha.toChar(buf.getChar()));
+                }
+                int[] forward = new int[size];
+                for (int i = 0; i < size; i += 1) {
+                    forward[i] = buf.getChar();
+                }
+                Permutation perm = new Permutation(forward, alpha);
+                if (type == 'M') {
+                    rotors.add(new MovingRotor(name, perm,
+                                               notches.toString()));
+                } else if (type == 'N') {
+                    rotors.add(new FixedRotor(name, perm));
+                } else if (type == 'R') {
+                    rotors.add(new Reflector(name, perm));
+                } else {
+                    throw error("Rotor type unreadable");
+                }
+            }
+            return new Machine(alpha, numRotors, numPawls, rotors);
+        } catch (BufferUnderflowException excp) {
+            throw error("compiled configuration truncated");
+        }
+    }
+
+    /** Return the string stored in BUF as a length followed by its
+     *  characters. */
+    private static String readString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0 || len > buf.remaining() / Character.BYTES) {
+            throw error("compiled configuration truncated");
+        }
+        char[] chars = new char[len];
+        buf.asCharBuffer().get(chars);
+        buf.position(buf.position() + len * Character.BYTES);
+        return new String(chars);
+    }
+
+    /** First four bytes of every compiled configuration: 0xff, then
+     *  "ENG" with the high bit of each byte set.  No byte of UTF-8 text
+     *  is 0xff, so no text configuration starts with MAGIC. */
+    static final int MAGIC = 0xffc5cec7;
+
+    /** Version of the compiled format written. */
+    static final int VERSION = 1;
+
+}
@@ -0,0 +1,80 @@
+package enigma;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** An InputStream that converts the single-byte characters read from
+ *  another InputStream with an Enigma machine, as EnigmaReader does for
+ *  characters, with no character decoding.  The machine's alphabet must
+ *  consist of single-byte characters.
+ *  @author Peter Sorensen
+ */
+class EnigmaInputStream extends FilterInputStream {
+
+    /** A stream converting the bytes of IN with M, which must be set up
+     *  and is advanced as bytes are read. */
+    EnigmaInputStream(InputStream in, Machine m) {
+        super(in);
+        m.checkSingleByte();
+        _m = m;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(_one, 0, 1);
+        return n < 0 ? -1 : _one[0] & BYTE_MASK;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            _m.convertInPlace(b, off, n);
+        }
+        return n;
+    }
+
+    /** Skip up to N bytes, converting them so that the machine's state
+     *  follows the text, returning the number skipped. */
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buf = new byte[(int) Math.min(Math.max(n, 0), SKIP_SIZE)];
+        long skipped = 0;
+        while (skipped < n) {
+            int k = read(buf, 0, (int) Math.min(n - skipped, buf.length));
+            if (k < 0) {
+                break;
+            }
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("reset not supported");
+    }
+
+    /** Mask selecting the low-order byte of an int. */
+    private static final int BYTE_MASK = 0xff;
+
+    /** Size of the buffer used by skip. */
+    private static final int SKIP_SIZE = 1 << 13;
+
+    /** The machine converting my input. */
+    private final Machine _m;
+
+    /** Buffer for read(). */
+    private final byte[] _one = new byte[1];
+
+}
@@ -0,0 +1,52 @@
+package enigma;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** An OutputStream that converts the single-byte characters written to
+ *  it with an Enigma machine and writes them to another OutputStream, as
+ *  EnigmaWriter does for characters.  The machine's alphabet must consist
+ *  of single-byte characters.
+ *  @author Peter Sorensen
+ */
+class EnigmaOutputStream extends FilterOutputStream {
+
+    /** A stream converting its bytes with M, which must be set up and is
+     *  advanced as bytes are written, and writing them to OUT. */
+    EnigmaOutputStream(OutputStream out, Machine m) {
+        super(out);
+        m.checkSingleByte();
+        _m = m;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        _buf[0] = (byte) b;
+        _m.convertInPlace(_buf, 0, 1);
+        out.write(_buf[0]);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, _buf.length);
+            System.arraycopy(b, off, _buf, 0, n);
+            _m.convertInPlace(_buf, 0, n);
+            out.write(_buf, 0, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Size of my conversion buffer, in bytes. */
+    private static final int BUFFER_SIZE = 1 << 13;
+
+    /** The machine converting my output. */
+    private final Machine _m;
+
+    /** Holds converted bytes, so that callers' arrays are not
+     *  modified. */
+    private final byte[] _buf = new byte[BUFFER_SIZE];
+
+}
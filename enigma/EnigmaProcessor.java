@@ -0,0 +1,299 @@
+package enigma;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static enigma.EnigmaException.*;
+
+/** A reactive-streams stage applying an Enigma machine to text.  Its
+ *  input is a stream of chunks of text in the format of the simulator's
+ *  input, divided arbitrarily: settings lines (whose first token is "*")
+ *  act as control signals that set the machine up anew, and message
+ *  lines are converted.  Its output is the converted text, as the
+ *  simulator would produce it.
+ *
+ *  Items are requested from upstream only while the downstream
+ *  subscriber has unmet demand and no converted output is waiting, and
+ *  then at most PREFETCH at a time, so that a slow subscriber slows the
+ *  publisher rather than causing text to accumulate here.  Input chunks
+ *  that arrive while earlier ones are being converted are converted
+ *  together, and output that is waiting for demand is merged into
+ *  chunks of up to MAX_CHUNK characters, so a slow subscriber receives
+ *  fewer, larger chunks.  When the subscriber keeps up and the publisher
+ *  delivers one chunk at a time, each input chunk yields one output
+ *  chunk.  No thread ever blocks: all work is done on the threads that
+ *  deliver signals, one at a time.
+ *  @author Peter Sorensen
+ */
+class EnigmaProcessor implements Flow.Processor<CharBuffer, CharBuffer> {
+
+    /** A stage applying M, which it alone should use. */
+    EnigmaProcessor(Machine m) {
+        _lines = new LineProcessor(m, _converted);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super CharBuffer> subscriber) {
+        Objects.requireNonNull(subscriber);
+        if (!_subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(
+                new IllegalStateException("already subscribed"));
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    _badRequest = true;
+                } else {
+                    _requested.accumulateAndGet(n, (a, b) ->
+                        a + b < 0 ? Long.MAX_VALUE : a + b);
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                _cancelled = true;
+                drain();
+            }
+        });
+        _downstream = subscriber;
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (_upstream != null) {
+            subscription.cancel();
+            return;
+        }
+        _upstream = subscription;
+        drain();
+    }
+
+    @Override
+    public void onNext(CharBuffer item) {
+        _inbox.add(item);
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        _failure = throwable;
+        _upstreamDone = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        _upstreamDone = true;
+        drain();
+    }
+
+    /** Do whatever work the signals received so far allow, unless
+     *  another thread is already doing so, in which case it will do this
+     *  work too. */
+    private void drain() {
+        if (_wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            if (_downstream != null && !_done) {
+                try {
+                    step();
+                } catch (EnigmaException | IOException excp) {
+                    fail(excp);
+                } catch (IndexOutOfBoundsException
+                         | NoSuchElementException
+                         | NullPointerException excp) {
+                    fail(error("Invalid Configuration, Settings, or Input."));
+                }
+            }
+            missed = _wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /** Convert received input, deliver output as demand allows, request
+     *  more input, and signal completion, for as long as there is
+     *  progress to be made. */
+    private void step() throws IOException {
+        while (!_done) {
+            if (_cancelled || _badRequest) {
+                if (_upstream != null) {
+                    _upstream.cancel();
+                }
+                _inbox.clear();
+                _ready.clear();
+                _done = true;
+                if (_badRequest && !_cancelled) {
+                    _downstream.onError(new IllegalArgumentException(
+                        "non-positive request"));
+                }
+                return;
+            }
+            if (!_inbox.isEmpty()) {
+                for (CharBuffer item = _inbox.poll(); item != null;
+                     item = _inbox.poll()) {
+                    _outstanding -= 1;
+                    process(item);
+                }
+                collect();
+            }
+            if (!_ready.isEmpty()) {
+                if (_requested.get() == 0) {
+                    return;
+                }
+                _requested.getAndUpdate(r ->
+                    r == Long.MAX_VALUE ? r : r - 1);
+                _downstream.onNext(_ready.poll());
+                continue;
+            }
+            if (_upstreamDone && _inbox.isEmpty()) {
+                if (_failure != null) {
+                    _done = true;
+                    _downstream.onError(_failure);
+                } else if (!_finished) {
+                    _finished = true;
+                    _lines.finish();
+                    collect();
+                    continue;
+                } else {
+                    _done = true;
+                    _downstream.onComplete();
+                }
+                return;
+            }
+            if (_upstream != null && _requested.get() > 0
+                && _outstanding <= PREFETCH / 2) {
+                long n = PREFETCH - _outstanding;
+                _outstanding += n;
+                _upstream.request(n);
+                continue;
+            }
+            return;
+        }
+    }
+
+    /** Convert the text remaining in ITEM. */
+    private void process(CharBuffer item) throws IOException {
+        if (item.hasArray()) {
+            int start = item.arrayOffset() + item.position();
+            _lines.process(item.array(), start, start + item.remaining());
+        } else {
+            char[] chars = new char[item.remaining()];
+            item.duplicate().get(chars);
+            _lines.process(chars, 0, chars.length);
+        }
+    }
+
+    /** Queue the output converted so far, if any, for delivery, adding
+     *  it to the last chunk queued if the result is no longer than
+     *  MAX_CHUNK. */
+    private void collect() {
+        if (_converted.size() == 0) {
+            return;
+        }
+        CharBuffer last = _ready.peekLast();
+        if (last != null
+            && last.remaining() + _converted.size() <= MAX_CHUNK) {
+            _ready.pollLast();
+            CharBuffer merged =
+                CharBuffer.allocate(last.remaining() + _converted.size());
+            merged.put(last).put(_converted.toCharArray()).flip();
+            _ready.add(merged);
+        } else {
+            _ready.add(CharBuffer.wrap(_converted.toCharArray()));
+        }
+        _converted.reset();
+    }
+
+    /** Cancel my subscription and report EXCP downstream. */
+    private void fail(Exception excp) {
+        _done = true;
+        _inbox.clear();
+        _ready.clear();
+        if (_upstream != null) {
+            _upstream.cancel();
+        }
+        _downstream.onError(excp);
+    }
+
+    /** Maximum number of items requested from upstream and not yet
+     *  received. */
+    static final int PREFETCH = 16;
+
+    /** Largest number of characters in an output chunk formed by merging
+     *  output waiting for demand. */
+    static final int MAX_CHUNK = 1 << 13;
+
+    /** Converts my input, writing to _converted. */
+    private final LineProcessor _lines;
+
+    /** Output converted but not yet queued in _ready. */
+    private final CharArrayWriter _converted = new CharArrayWriter();
+
+    /** Chunks of output awaiting demand. */
+    private final ArrayDeque<CharBuffer> _ready = new ArrayDeque<>();
+
+    /** Items received from upstream and not yet converted. */
+    private final ConcurrentLinkedQueue<CharBuffer> _inbox =
+        new ConcurrentLinkedQueue<>();
+
+    /** Number of items requested downstream and not yet delivered. */
+    private final AtomicLong _requested = new AtomicLong();
+
+    /** Number of items requested from upstream and not yet received. */
+    private long _outstanding;
+
+    /** Counts calls to drain not yet accounted for. */
+    private final AtomicInteger _wip = new AtomicInteger();
+
+    /** True once a subscriber has subscribed. */
+    private final AtomicBoolean _subscribed = new AtomicBoolean();
+
+    /** My subscriber, once subscribed. */
+    private volatile Flow.Subscriber<? super CharBuffer> _downstream;
+
+    /** My subscription to my publisher, once subscribed. */
+    private volatile Flow.Subscription _upstream;
+
+    /** True once upstream has completed or failed. */
+    private volatile boolean _upstreamDone;
+
+    /** The error with which upstream failed, if it did. */
+    private volatile Throwable _failure;
+
+    /** True once downstream has cancelled. */
+    private volatile boolean _cancelled;
+
+    /** True once downstream has made an invalid request. */
+    private volatile boolean _badRequest;
+
+    /** True once the last of the input has been processed. */
+    private boolean _finished;
+
+    /** True once downstream has been sent a terminal signal. */
+    private boolean _done;
+
+}
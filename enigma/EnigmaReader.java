@@ -0,0 +1,80 @@
+package enigma;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/** A Reader that converts the characters read from another Reader with
+ *  an Enigma machine as they are read.  Characters of the machine's
+ *  alphabet (after upper-casing) are converted; all others, including
+ *  blanks and line terminators, are passed through unchanged, and the
+ *  output is not grouped.  The machine keeps its state between reads,
+ *  so the text read is converted as one continuous message.
+ *  @author Peter Sorensen
+ */
+class EnigmaReader extends FilterReader {
+
+    /** A Reader converting the characters of IN with M, which must be
+     *  set up and is advanced as characters are read. */
+    EnigmaReader(Reader in, Machine m) {
+        super(in);
+        _m = m;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(_one, 0, 1);
+        return n < 0 ? -1 : _one[0];
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        int n = in.read(cbuf, off, len);
+        if (n > 0) {
+            _m.convertInPlace(cbuf, off, n);
+        }
+        return n;
+    }
+
+    /** Skip up to N characters, which must still be converted so that
+     *  the machine's state follows the text, returning the number
+     *  skipped. */
+    @Override
+    public long skip(long n) throws IOException {
+        char[] buf = new char[(int) Math.min(Math.max(n, 0), SKIP_SIZE)];
+        long skipped = 0;
+        while (skipped < n) {
+            int k = read(buf, 0, (int) Math.min(n - skipped, buf.length));
+            if (k < 0) {
+                break;
+            }
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) throws IOException {
+        throw new IOException("mark not supported");
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("reset not supported");
+    }
+
+    /** Size of the buffer used by skip. */
+    private static final int SKIP_SIZE = 1 << 13;
+
+    /** The machine converting my input. */
+    private final Machine _m;
+
+    /** Buffer for read(). */
+    private final char[] _one = new char[1];
+
+}
@@ -0,0 +1,353 @@
+package enigma;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Writer;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static enigma.EnigmaException.*;
+
+/** A server that applies copies of a configured machine to requests
+ *  arriving over local connections, so that the cost of starting the
+ *  JVM and reading the configuration is paid once rather than once per
+ *  job.  It listens on a loopback TCP port or a Unix-domain socket.
+ *
+ *  Requests and responses are sequences of frames, each a type byte, a
+ *  four-byte big-endian length, and that many bytes of UTF-8 text.  A
+ *  request is a single REQUEST frame holding input in the usual format:
+ *  a settings line followed by message lines, with further settings
+ *  lines as needed.  The response is zero or more DATA frames holding
+ *  the output, as it is produced, followed by an END frame, or by an
+ *  ERROR frame holding an error message if the input was invalid.  A
+ *  connection may carry any number of requests, one after another.
+ *
+ *  Each connection is served on its own thread, and each request is
+ *  converted with its own copy of the machine; at most a given number
+ *  of requests are converted at once, and others wait their turn.
+ *  @author Peter Sorensen
+ */
+class EnigmaServer implements Closeable {
+
+    /** A server applying copies of M, listening at ADDRESS, that converts
+     *  at most LIMIT requests at once. */
+    EnigmaServer(Machine m, SocketAddress address, int limit)
+        throws IOException {
+        _m = m;
+        _limit = limit;
+        _permits = new Semaphore(limit);
+        if (address instanceof UnixDomainSocketAddress) {
+            _server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            _server = ServerSocketChannel.open();
+        }
+        _server.bind(address);
+        _connections = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "enigma-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Return the address described by SPEC: a loopback TCP port if it
+     *  is a number (0 for any free port), and otherwise the path of a
+     *  Unix-domain socket. */
+    static SocketAddress address(String spec) {
+        if (!spec.isEmpty() && spec.chars().allMatch(Character::isDigit)) {
+            try {
+                return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                             Integer.parseInt(spec));
+            } catch (IllegalArgumentException excp) {
+                throw error("invalid port: %s", spec);
+            }
+        }
+        if (spec.isEmpty()) {
+            throw error("no server address given");
+        }
+        return UnixDomainSocketAddress.of(spec);
+    }
+
+    /** Return the address on which I am listening. */
+    SocketAddress address() throws IOException {
+        return _server.getLocalAddress();
+    }
+
+    /** Accept and serve connections until I am closed. */
+    void serve() throws IOException {
+        while (true) {
+            SocketChannel client;
+            try {
+                client = _server.accept();
+            } catch (ClosedChannelException excp) {
+                return;
+            }
+            _clients.add(client);
+            _connections.execute(() -> handle(client));
+        }
+    }
+
+    /** Serve connections on a new thread until I am closed. */
+    void start() {
+        Thread acceptor = new Thread(() -> {
+            try {
+                serve();
+            } catch (IOException excp) {
+                /* Closed. */
+            }
+        }, "enigma-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** Stop accepting connections, wait (for a limited time) for the
+     *  requests being converted to finish, and then close all
+     *  connections. */
+    @Override
+    public void close() throws IOException {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        SocketAddress address = _server.getLocalAddress();
+        _server.close();
+        if (address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address)
+                                 .getPath());
+        }
+        try {
+            _permits.tryAcquire(_limit, SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+        }
+        for (SocketChannel client : _clients) {
+            client.close();
+        }
+        _connections.shutdownNow();
+    }
+
+    /** Serve the requests arriving on CLIENT until it is closed. */
+    private void handle(SocketChannel client) {
+        try (client) {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(client)));
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(client)));
+            while (true) {
+                String input;
+                try {
+                    input = readFrame(in, REQUEST);
+                } catch (EOFException excp) {
+                    return;
+                }
+                if (_closed) {
+                    writeFrame(out, ERROR, "server shutting down");
+                    out.flush();
+                    return;
+                }
+                _permits.acquire();
+                try {
+                    convert(input, out);
+                } finally {
+                    _permits.release();
+                }
+                out.flush();
+            }
+        } catch (IOException | InterruptedException excp) {
+            /* Connection closed or server shut down. */
+        } catch (EnigmaException excp) {
+            /* Malformed frame: drop the connection. */
+        } finally {
+            _clients.remove(client);
+        }
+    }
+
+    /** Convert INPUT with a fresh copy of my machine, writing the
+     *  response frames to OUT. */
+    private void convert(String input, DataOutputStream out)
+        throws IOException {
+        FrameWriter output = new FrameWriter(out);
+        try {
+            LineProcessor lines = new LineProcessor(_m.copy(), output);
+            char[] chars = input.toCharArray();
+            lines.process(chars, 0, chars.length);
+            lines.finish();
+            output.flush();
+            writeFrame(out, END, "");
+        } catch (EnigmaException excp) {
+            output.flush();
+            writeFrame(out, ERROR, excp.getMessage());
+        } catch (ArrayIndexOutOfBoundsException
+                 | NoSuchElementException
+                 | NullPointerException excp) {
+            output.flush();
+            writeFrame(out, ERROR,
+                       "Invalid Configuration, Settings, or Input.");
+        }
+    }
+
+    /** Send INPUT as a request on CHANNEL, returning the text of the
+     *  response.  Throws an EnigmaException with the server's message if
+     *  it reports an error. */
+    static String request(ByteChannel channel, String input)
+        throws IOException {
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(channel)));
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Channels.newInputStream(channel)));
+        writeFrame(out, REQUEST, input);
+        out.flush();
+        StringBuilder result = new StringBuilder();
+        while (true) {
+            int type = in.readUnsignedByte();
+            String text = readText(in);
+            if (type == END) {
+                return result.toString();
+            } else if (type == ERROR) {
+                throw error("%s", text);
+            } else if (type != DATA) {
+                throw error("unexpected frame type: %d", type);
+            }
+            result.append(text);
+        }
+    }
+
+    /** Read a frame of type TYPE from IN, returning its text.  Throws
+     *  EOFException if IN is at its end before the frame begins. */
+    private static String readFrame(DataInputStream in, int type)
+        throws IOException {
+        int actual = in.read();
+        if (actual < 0) {
+            throw new EOFException();
+        }
+        if (actual != type) {
+            throw error("unexpected frame type: %d", actual);
+        }
+        return readText(in);
+    }
+
+    /** Read the length and text of a frame from IN. */
+    private static String readText(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > MAX_FRAME) {
+            throw error("invalid frame length: %d", len);
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        Metrics.BYTES_READ.add(len);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Write a frame of type TYPE holding TEXT to OUT. */
+    private static void writeFrame(DataOutputStream out, int type,
+                                   String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(type);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        Metrics.BYTES_WRITTEN.add(bytes.length);
+    }
+
+    /** A Writer that sends its output as DATA frames of at most about
+     *  CHUNK_SIZE characters each. */
+    private static class FrameWriter extends Writer {
+
+        /** A writer sending frames to OUT. */
+        FrameWriter(DataOutputStream out) {
+            _out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            _buf.append(cbuf, off, len);
+            if (_buf.length() >= CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (_buf.length() > 0) {
+                writeFrame(_out, DATA, _buf.toString());
+                _buf.setLength(0);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        /** Destination of my frames. */
+        private final DataOutputStream _out;
+
+        /** Output not yet sent. */
+        private final StringBuilder _buf = new StringBuilder();
+    }
+
+    /** Frame type of a request. */
+    static final int REQUEST = 'Q';
+
+    /** Frame type of part of a response's output. */
+    static final int DATA = 'D';
+
+    /** Frame type ending a successful response. */
+    static final int END = 'E';
+
+    /** Frame type ending a response with an error message. */
+    static final int ERROR = 'X';
+
+    /** Largest frame length accepted, in bytes. */
+    static final int MAX_FRAME = 1 << 26;
+
+    /** Number of characters of output collected into each DATA frame. */
+    static final int CHUNK_SIZE = LineProcessor.BUFFER_SIZE;
+
+    /** Number of seconds close() waits for requests to finish. */
+    static final int SHUTDOWN_SECONDS = 30;
+
+    /** The configured machine, copied for each request. */
+    private final Machine _m;
+
+    /** Maximum number of requests converted at once. */
+    private final int _limit;
+
+    /** One permit for each request that may be converted at once. */
+    private final Semaphore _permits;
+
+    /** Channel on which connections are accepted. */
+    private final ServerSocketChannel _server;
+
+    /** Runs a thread for each connection. */
+    private final ExecutorService _connections;
+
+    /** Connections currently open. */
+    private final Set<SocketChannel> _clients =
+        ConcurrentHashMap.newKeySet();
+
+    /** True once close() has been called. */
+    private volatile boolean _closed;
+
+}
@@ -0,0 +1,65 @@
+package enigma;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/** A Writer that converts the characters written to it with an Enigma
+ *  machine and writes the results to another Writer.  As for
+ *  EnigmaReader, only characters of the machine's alphabet are
+ *  converted and the output is not grouped (see GroupingWriter).  The
+ *  machine keeps its state between writes.
+ *  @author Peter Sorensen
+ */
+class EnigmaWriter extends FilterWriter {
+
+    /** A Writer converting its characters with M, which must be set up
+     *  and is advanced as characters are written, and writing them to
+     *  OUT. */
+    EnigmaWriter(Writer out, Machine m) {
+        super(out);
+        _m = m;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        _buf[0] = (char) c;
+        _m.convertInPlace(_buf, 0, 1);
+        out.write(_buf[0]);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, _buf.length);
+            System.arraycopy(cbuf, off, _buf, 0, n);
+            _m.convertInPlace(_buf, 0, n);
+            out.write(_buf, 0, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, _buf.length);
+            str.getChars(off, off + n, _buf, 0);
+            _m.convertInPlace(_buf, 0, n);
+            out.write(_buf, 0, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Size of my conversion buffer, in characters. */
+    private static final int BUFFER_SIZE = 1 << 13;
+
+    /** The machine converting my output. */
+    private final Machine _m;
+
+    /** Holds converted characters, so that callers' arrays are not
+     *  modified. */
+    private final char[] _buf = new char[BUFFER_SIZE];
+
+}
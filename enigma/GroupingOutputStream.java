@@ -0,0 +1,63 @@
+package enigma;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** An OutputStream that formats the single-byte characters written to
+ *  it in groups, as GroupingWriter does for characters.
+ *  @author Peter Sorensen
+ */
+class GroupingOutputStream extends FilterOutputStream {
+
+    /** A stream formatting its bytes and writing them to OUT. */
+    GroupingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        _one[0] = (byte) b;
+        write(_one, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, BUFFER_SIZE), k = 0;
+            for (int i = off; i < off + n; i += 1) {
+                byte c = b[i];
+                if (c == ' ') {
+                    continue;
+                }
+                if (c == '\n' || c == '\r') {
+                    _grouped = 0;
+                } else {
+                    if (_grouped == Machine.GROUP_SIZE) {
+                        _buf[k++] = ' ';
+                        _grouped = 0;
+                    }
+                    _grouped += 1;
+                }
+                _buf[k++] = c;
+            }
+            out.write(_buf, 0, k);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Number of input bytes formatted at a time. */
+    private static final int BUFFER_SIZE = 1 << 13;
+
+    /** Number of characters written to the current group. */
+    private int _grouped;
+
+    /** Holds formatted bytes. */
+    private final byte[] _buf =
+        new byte[BUFFER_SIZE + BUFFER_SIZE / Machine.GROUP_SIZE + 1];
+
+    /** Buffer for write(int). */
+    private final byte[] _one = new byte[1];
+
+}
@@ -0,0 +1,81 @@
+package enigma;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/** A Writer that formats the text written to it as Machine.convert
+ *  formats messages: blanks are dropped and each line is broken into
+ *  groups of Machine.GROUP_SIZE characters separated by single blanks.
+ *  Line terminators are passed through and begin new groups.  Placed in
+ *  front of an EnigmaWriter, it produces the output of the command-line
+ *  simulator for message lines.
+ *  @author Peter Sorensen
+ */
+class GroupingWriter extends FilterWriter {
+
+    /** A Writer formatting its characters and writing them to OUT. */
+    GroupingWriter(Writer out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        _one[0] = (char) c;
+        write(_one, 0, 1);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, BUFFER_SIZE), k = 0;
+            for (int i = off; i < off + n; i += 1) {
+                char c = cbuf[i];
+                if (c == ' ') {
+                    continue;
+                }
+                if (c == '\n' || c == '\r') {
+                    _grouped = 0;
+                } else {
+                    if (_grouped == Machine.GROUP_SIZE) {
+                        _buf[k++] = ' ';
+                        _grouped = 0;
+                    }
+                    _grouped += 1;
+                }
+                _buf[k++] = c;
+            }
+            out.write(_buf, 0, k);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, _chars.length);
+            str.getChars(off, off + n, _chars, 0);
+            write(_chars, 0, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Number of input characters formatted at a time. */
+    private static final int BUFFER_SIZE = 1 << 13;
+
+    /** Number of characters written to the current group. */
+    private int _grouped;
+
+    /** Holds formatted characters. */
+    private final char[] _buf =
+        new char[BUFFER_SIZE + BUFFER_SIZE / Machine.GROUP_SIZE + 1];
+
+    /** Holds characters of strings being written. */
+    private final char[] _chars = new char[BUFFER_SIZE];
+
+    /** Buffer for write(int). */
+    private final char[] _one = new char[1];
+
+}
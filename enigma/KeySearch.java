@@ -0,0 +1,360 @@
+package enigma;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+import static enigma.EnigmaException.*;
+
+/** A ciphertext-only attack on an Enigma machine with no plugboard.
+ *  Every rotor order permitted by a configuration (a reflector in slot
+ *  0, non-moving rotors in the following slots and moving rotors in the
+ *  last numPawls slots) is tried with every setting of its rotors.  A
+ *  prefix of the ciphertext is decrypted with each candidate key, and
+ *  the candidates whose decryptions have the highest index of
+ *  coincidence (which is higher for natural-language text than for
+ *  random text) are reported.  The key space is divided among the
+ *  threads of a ForkJoinPool.
+ *  @author Peter Sorensen
+ */
+class KeySearch {
+
+    /** A search over the rotors available to M, which has been
+     *  configured but need not have had its rotors inserted, running on
+     *  POOL. */
+    KeySearch(Machine m, ForkJoinPool pool) {
+        _m = m;
+        _pool = pool;
+        _size = m.alphabet().size();
+        _orders = orders(m);
+        _settings = settings(_size, m.numRotors());
+        try {
+            _total = Math.multiplyExact(_settings, (long) _orders.size());
+        } catch (ArithmeticException excp) {
+            throw error("keyspace too large to search");
+        }
+        _states = new MachineState[_orders.size()];
+        for (int i = 0; i < _states.length; i += 1) {
+            Machine copy = m.copy();
+            copy.insertRotors(_orders.get(i));
+            _states[i] = new MachineSpec(copy).newState();
+        }
+    }
+
+    /** Return the TOP candidate keys whose decryptions of up to PREFIX
+     *  characters of CIPHERTEXT score highest, best first.  Characters
+     *  of CIPHERTEXT not in the alphabet (such as blanks) are
+     *  ignored. */
+    List<Candidate> search(String ciphertext, int prefix, int top) {
+        if (top <= 0) {
+            throw error("number of results must be positive");
+        }
+        Alphabet alpha = _m.alphabet();
+        int[] cipher = new int[Math.min(prefix, ciphertext.length())];
+        int n = 0;
+        for (int i = 0; i < ciphertext.length() && n < cipher.length;
+             i += 1) {
+            char c = Character.toUpperCase(ciphertext.charAt(i));
+            if (alpha.contains(c)) {
+                cipher[n++] = alpha.toInt(c);
+            }
+        }
+        if (n < 2) {
+            throw error("ciphertext too short to search");
+        }
+        int[] text = new int[n];
+        System.arraycopy(cipher, 0, text, 0, n);
+        _tested.reset();
+        List<Candidate> result =
+            _pool.invoke(new Part(text, top, 0, _total)).toList();
+        Collections.reverse(result);
+        return result;
+    }
+
+    /** Return the number of candidate keys tried so far by the current
+     *  or last search.  May be called from any thread. */
+    long tested() {
+        return _tested.sum();
+    }
+
+    /** Return the total number of candidate keys. */
+    long total() {
+        return _total;
+    }
+
+    /** Return the number of starting settings of a machine with SLOTS
+     *  rotor slots and an alphabet of SIZE characters (the reflector's
+     *  setting being fixed).  It is an error if the number does not fit
+     *  in a long. */
+    static long settings(int size, int slots) {
+        long result = 1;
+        try {
+            for (int i = 1; i < slots; i += 1) {
+                result = Math.multiplyExact(result, (long) size);
+            }
+        } catch (ArithmeticException excp) {
+            throw error("keyspace too large to search");
+        }
+        return result;
+    }
+
+    /** Return the rotor orders available to M, each as an array of rotor
+     *  names indexed by slot. */
+    static List<String[]> orders(Machine m) {
+        ArrayList<Rotor> reflectors = new ArrayList<>(),
+            fixed = new ArrayList<>(), moving = new ArrayList<>();
+        for (Rotor rotor : m.allRotors()) {
+            if (rotor.reflecting()) {
+                reflectors.add(rotor);
+            } else if (rotor.rotates()) {
+                moving.add(rotor);
+            } else {
+                fixed.add(rotor);
+            }
+        }
+        List<String[]> result = new ArrayList<>();
+        String[] order = new String[m.numRotors()];
+        for (Rotor reflector : reflectors) {
+            order[0] = reflector.name();
+            arrange(order, 1, m.numRotors() - m.numPawls(), fixed, moving,
+                    new boolean[fixed.size()], new boolean[moving.size()],
+                    result);
+        }
+        return result;
+    }
+
+    /** Add to RESULT all completions of ORDER from slot K on, filling
+     *  slots below FIRSTMOVING with unused members of FIXED and the
+     *  remaining slots with unused members of MOVING.  USEDFIXED and
+     *  USEDMOVING mark the rotors already placed. */
+    private static void arrange(String[] order, int k, int firstMoving,
+                                List<Rotor> fixed, List<Rotor> moving,
+                                boolean[] usedFixed, boolean[] usedMoving,
+                                List<String[]> result) {
+        if (k == order.length) {
+            result.add(order.clone());
+            return;
+        }
+        List<Rotor> choices = k < firstMoving ? fixed : moving;
+        boolean[] used = k < firstMoving ? usedFixed : usedMoving;
+        for (int i = 0; i < choices.size(); i += 1) {
+            if (!used[i]) {
+                used[i] = true;
+                order[k] = choices.get(i).name();
+                arrange(order, k + 1, firstMoving, fixed, moving,
+                        usedFixed, usedMoving, result);
+                used[i] = false;
+            }
+        }
+    }
+
+    /** Return the index of coincidence of the COUNTS of each character
+     *  in a text of N characters. */
+    static double indexOfCoincidence(int[] counts, int n) {
+        long sum = 0;
+        for (int count : counts) {
+            sum += (long) count * (count - 1);
+        }
+        return (double) sum / ((long) n * (n - 1));
+    }
+
+    /** A candidate key and the score of the decryption it yields. */
+    static final class Candidate implements Comparable<Candidate> {
+
+        /** A candidate with rotors ORDER at settings SETTING, whose
+         *  decryption scores SCORE. */
+        Candidate(String[] order, String setting, double score) {
+            _order = order;
+            _setting = setting;
+            _score = score;
+        }
+
+        /** Return the names of my rotors, indexed by slot. */
+        String[] order() {
+            return _order.clone();
+        }
+
+        /** Return the settings of my rotors, as for Machine.setRotors. */
+        String setting() {
+            return _setting;
+        }
+
+        /** Return my score. */
+        double score() {
+            return _score;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return Double.compare(_score, other._score);
+        }
+
+        /** Return a settings line selecting my key. */
+        @Override
+        public String toString() {
+            return "* " + String.join(" ", _order) + " " + _setting;
+        }
+
+        /** Rotor names. */
+        private final String[] _order;
+        /** Rotor settings. */
+        private final String _setting;
+        /** Score of the decryption. */
+        private final double _score;
+    }
+
+    /** The best candidates found in some part of the key space, worst
+     *  first. */
+    private static final class Best {
+
+        /** A collection of at most TOP candidates. */
+        Best(int top) {
+            _top = top;
+        }
+
+        /** Return true iff a candidate scoring SCORE would be kept. */
+        boolean wants(double score) {
+            return _queue.size() < _top || score > _queue.peek().score();
+        }
+
+        /** Add CANDIDATE, discarding the worst candidate if there are
+         *  too many. */
+        void add(Candidate candidate) {
+            _queue.add(candidate);
+            if (_queue.size() > _top) {
+                _queue.remove();
+            }
+        }
+
+        /** Add the candidates in OTHER, returning me. */
+        Best merge(Best other) {
+            for (Candidate candidate : other._queue) {
+                if (wants(candidate.score())) {
+                    add(candidate);
+                }
+            }
+            return this;
+        }
+
+        /** Return my candidates, worst first. */
+        List<Candidate> toList() {
+            ArrayList<Candidate> result = new ArrayList<>(_queue);
+            Collections.sort(result);
+            return result;
+        }
+
+        /** Maximum number of candidates. */
+        private final int _top;
+        /** Candidates, with the worst at the head. */
+        private final PriorityQueue<Candidate> _queue = new PriorityQueue<>();
+    }
+
+    /** The search of the candidate keys numbered LO .. HI-1, where key K
+     *  is setting number K % _settings of rotor order K / _settings. */
+    private final class Part extends RecursiveTask<Best> {
+
+        /** A search of keys LO .. HI-1 for the best TOP decryptions of
+         *  CIPHER. */
+        Part(int[] cipher, int top, long lo, long hi) {
+            _cipher = cipher;
+            _top = top;
+            _lo = lo;
+            _hi = hi;
+        }
+
+        @Override
+        protected Best compute() {
+            if (_hi - _lo > CHUNK) {
+                long mid = (_lo + _hi) >>> 1;
+                Part left = new Part(_cipher, _top, _lo, mid);
+                left.fork();
+                Best right = new Part(_cipher, _top, mid, _hi).compute();
+                return right.merge(left.join());
+            }
+            Best best = new Best(_top);
+            int[] counts = new int[_size];
+            for (long k = _lo; k < _hi; ) {
+                long first = k;
+                int order = (int) (k / _settings);
+                long end = Math.min(_hi, (order + 1) * _settings);
+                MachineState state = _states[order].copy();
+                int[] posns = new int[_m.numRotors()];
+                for (; k < end; k += 1) {
+                    long s = k % _settings;
+                    for (int i = posns.length - 1; i > 0; i -= 1) {
+                        posns[i] = (int) (s % _size);
+                        s /= _size;
+                    }
+                    state.setPositions(posns);
+                    Arrays.fill(counts, 0);
+                    for (int c : _cipher) {
+                        counts[state.convert(c)] += 1;
+                    }
+                    double score = indexOfCoincidence(counts, _cipher.length);
+                    if (best.wants(score)) {
+                        best.add(new Candidate(_orders.get(order),
+                                               setting(posns), score));
+                    }
+                }
+                _tested.add(end - first);
+            }
+            return best;
+        }
+
+        /** The ciphertext, as alphabet indices. */
+        private final int[] _cipher;
+        /** Number of candidates to keep. */
+        private final int _top;
+        /** First key searched. */
+        private final long _lo;
+        /** Bound on the keys searched. */
+        private final long _hi;
+        /** Version number for serialization. */
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** Return the settings POSNS of the rotors other than the reflector,
+     *  as for Machine.setRotors. */
+    private String setting(int[] posns) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 1; i < posns.length; i += 1) {
+            result.append(_m.alphabet().toChar(posns[i]));
+        }
+        return result.toString();
+    }
+
+    /** Number of keys below which a part of the key space is searched by
+     *  a single task. */
+    static final long CHUNK = 1 << 12;
+
+    /** The machine whose rotors are searched. */
+    private final Machine _m;
+
+    /** Pool on which the search runs. */
+    private final ForkJoinPool _pool;
+
+    /** Size of the alphabet. */
+    private final int _size;
+
+    /** The rotor orders searched. */
+    private final List<String[]> _orders;
+
+    /** For each rotor order, a state of a machine with its rotors
+     *  inserted, which the tasks searching that order copy. */
+    private final MachineState[] _states;
+
+    /** Number of rotor settings for each rotor order. */
+    private final long _settings;
+
+    /** Total number of candidate keys. */
+    private final long _total;
+
+    /** Number of keys tried in the current search. */
+    private final LongAdder _tested = new LongAdder();
+
+}
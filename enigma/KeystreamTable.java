@@ -0,0 +1,141 @@
+package enigma;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static enigma.EnigmaException.*;
+
+/** The complete keystream of an Enigma machine from a given starting
+ *  state.  The rotor settings after each keystroke eventually repeat, so
+ *  the substitution applied at every keystroke (plugboard, rotors,
+ *  reflector, rotors, plugboard) is one of a finite number of rows, which
+ *  are computed once and stored off the Java heap.  Converting the Kth
+ *  character of a message is then a single table lookup.  A
+ *  KeystreamTable does not change after it is built, and may be shared
+ *  among threads.
+ *  @author Peter Sorensen
+ */
+final class KeystreamTable {
+
+    /** The keystream of a machine described by SPEC whose rotors start
+     *  at settings START and whose plugboard is PLUG.  It is an error if
+     *  the table would need more than MAX_BYTES bytes. */
+    KeystreamTable(MachineSpec spec, int[] start, Permutation plug) {
+        _size = spec.alphabet().size();
+        _width = _size <= BYTE_LIMIT ? 1 : 2;
+        findCycle(spec, start);
+        long bytes = (long) (_prefix + _period) * _size * _width;
+        if (bytes > MAX_BYTES) {
+            throw error("keystream table too large (%d bytes)", bytes);
+        }
+        _table = ByteBuffer.allocateDirect((int) bytes);
+        int[] posns = Arrays.copyOf(start, start.length);
+        for (int row = 0; row < _prefix + _period; row += 1) {
+            spec.step(posns);
+            for (int c = 0; c < _size; c += 1) {
+                int e = spec.convert(posns, plug, c);
+                if (_width == 1) {
+                    _table.put((byte) e);
+                } else {
+                    _table.putChar((char) e);
+                }
+            }
+        }
+    }
+
+    /** The keystream of STATE's machine from STATE's current settings
+     *  and plugboard. */
+    KeystreamTable(MachineState state) {
+        this(state.spec(), state.positions(), state.plugboard());
+    }
+
+    /** Return the number of keystrokes after which the rotor settings
+     *  repeat (once past the first prefix() keystrokes). */
+    int period() {
+        return _period;
+    }
+
+    /** Return the number of initial keystrokes whose rotor settings never
+     *  recur. */
+    int prefix() {
+        return _prefix;
+    }
+
+    /** Return the conversion of C (an index into the alphabet) when it
+     *  is keystroke number K (numbering from 0) from the starting
+     *  state. */
+    int convert(long k, int c) {
+        long row = k < _prefix ? k : _prefix + (k - _prefix) % _period;
+        int index = (int) row * _size + c;
+        if (_width == 1) {
+            return _table.get(index) & 0xff;
+        }
+        return _table.getChar(index * 2);
+    }
+
+    /** Convert the LEN alphabet indices IN[OFF ..] as keystrokes K, K+1,
+     *  ..., storing the results in OUT[OUTOFF ..]. */
+    void convert(long k, int[] in, int off, int len, int[] out,
+                 int outOff) {
+        for (int i = 0; i < len; i += 1) {
+            out[outOff + i] = convert(k + i, in[off + i]);
+        }
+    }
+
+    /** Set _prefix and _period to the length of the transient and cycle
+     *  of the sequence of settings that SPEC's rotors take after each
+     *  keystroke from START, using Brent's algorithm. */
+    private void findCycle(MachineSpec spec, int[] start) {
+        int[] tortoise = Arrays.copyOf(start, start.length);
+        int[] hare = Arrays.copyOf(start, start.length);
+        spec.step(hare);
+        int power = 1, lambda = 1;
+        while (!Arrays.equals(tortoise, hare)) {
+            if (power == lambda) {
+                System.arraycopy(hare, 0, tortoise, 0, hare.length);
+                power *= 2;
+                lambda = 0;
+            }
+            spec.step(hare);
+            lambda += 1;
+            if (lambda > MAX_BYTES / _size) {
+                throw error("keystream period too long");
+            }
+        }
+        System.arraycopy(start, 0, tortoise, 0, start.length);
+        System.arraycopy(start, 0, hare, 0, start.length);
+        spec.advance(hare, lambda);
+        int mu = 0;
+        while (!Arrays.equals(tortoise, hare)) {
+            spec.step(tortoise);
+            spec.step(hare);
+            mu += 1;
+        }
+        _prefix = Math.max(mu - 1, 0);
+        _period = lambda;
+    }
+
+    /** Largest alphabet whose indices are stored in single bytes. */
+    private static final int BYTE_LIMIT = 256;
+
+    /** Largest table, in bytes, that will be built. */
+    static final int MAX_BYTES = 1 << 30;
+
+    /** Size of the alphabet. */
+    private final int _size;
+
+    /** Bytes per table entry. */
+    private final int _width;
+
+    /** Number of initial rows that are not repeated. */
+    private int _prefix;
+
+    /** Number of rows in the repeating part. */
+    private int _period;
+
+    /** Row R holds the substitution for keystroke R (R < _prefix) or for
+     *  all keystrokes K >= _prefix with (K - _prefix) % _period equal to
+     *  R - _prefix. */
+    private final ByteBuffer _table;
+
+}
@@ -0,0 +1,256 @@
+package enigma;
+
+import static enigma.EnigmaException.*;
+
+/** Encrypts many independent messages at once with machines that share
+ *  a rotor order and wiring but have their own rotor settings and
+ *  plugboards, one message per "lane".  Lane state is kept as arrays
+ *  indexed by lane, and each keystroke is applied to every lane in turn,
+ *  one rotor at a time, so the innermost loops run across lanes.  This
+ *  amortizes the per-keystroke work of Machine.convert(int) (finding
+ *  each slot's rotor and tables, and dispatching on its class) over
+ *  many messages, and keeps each rotor's table in cache while it is
+ *  used by all lanes.  The loops still test notches lane by lane and
+ *  look tables up at lane-dependent indices, so they are not
+ *  vectorized.
+ *  @author Peter Sorensen
+ */
+class LaneEngine {
+
+    /** An engine with LANES lanes for machines described by SPEC.  Every
+     *  lane starts with all rotors at setting 0 and no plugboard
+     *  connections. */
+    LaneEngine(MachineSpec spec, int lanes) {
+        if (lanes <= 0) {
+            throw error("number of lanes must be positive");
+        }
+        _spec = spec;
+        _lanes = lanes;
+        _size = spec.alphabet().size();
+        _slots = spec.numRotors();
+        _firstMoving = _slots - spec.numPawls();
+        _posns = new int[_slots][lanes];
+        _plug = new int[lanes * _size];
+        for (int lane = 0; lane < lanes; lane += 1) {
+            for (int c = 0; c < _size; c += 1) {
+                _plug[lane * _size + c] = c;
+            }
+        }
+        _forward = new int[_slots][];
+        _backward = new int[_slots][];
+        _notches = new boolean[_slots][];
+        for (int k = 0; k < _slots; k += 1) {
+            if (_size <= Main.MAX_TABULATED_SIZE) {
+                _forward[k] = new int[_size * _size];
+                _backward[k] = new int[_size * _size];
+                for (int posn = 0; posn < _size; posn += 1) {
+                    for (int c = 0; c < _size; c += 1) {
+                        _forward[k][posn * _size + c] =
+                            spec.convertForward(k, c, posn);
+                        _backward[k][posn * _size + c] =
+                            spec.convertBackward(k, c, posn);
+                    }
+                }
+            }
+            if (spec.rotates(k)) {
+                _notches[k] = new boolean[_size];
+                for (int posn = 0; posn < _size; posn += 1) {
+                    _notches[k][posn] = spec.atNotch(k, posn);
+                }
+            }
+        }
+        _moves = new boolean[lanes];
+        _c = new int[lanes];
+    }
+
+    /** Return the number of lanes. */
+    int lanes() {
+        return _lanes;
+    }
+
+    /** Give LANE the rotor settings and plugboard of STATE, which must be
+     *  a state of my machine. */
+    void setKey(int lane, MachineState state) {
+        if (state.spec() != _spec) {
+            throw error("state is for a different machine");
+        }
+        int[] posns = state.positions();
+        for (int k = 0; k < _slots; k += 1) {
+            _posns[k][lane] = posns[k];
+        }
+        Permutation plug = state.plugboard();
+        for (int c = 0; c < _size; c += 1) {
+            _plug[lane * _size + c] = plug.permute(c);
+        }
+    }
+
+    /** Return the rotor settings of LANE, indexed by slot. */
+    int[] positions(int lane) {
+        int[] result = new int[_slots];
+        for (int k = 0; k < _slots; k += 1) {
+            result[k] = _posns[k][lane];
+        }
+        return result;
+    }
+
+    /** Convert the messages IN[0 .. lanes()-1], given as alphabet
+     *  indices, into OUT, which must have arrays of the same lengths.
+     *  The message in lane L is converted as MachineState.convert(int)
+     *  would convert it from L's key, and L's rotor settings are left as
+     *  that would leave them. */
+    void convert(int[][] in, int[][] out) {
+        int shortest = Integer.MAX_VALUE, longest = 0;
+        for (int lane = 0; lane < _lanes; lane += 1) {
+            shortest = Math.min(shortest, in[lane].length);
+            longest = Math.max(longest, in[lane].length);
+        }
+        for (int i = 0; i < longest; i += 1) {
+            boolean ragged = i >= shortest;
+            for (int lane = 0; lane < _lanes; lane += 1) {
+                _c[lane] = !ragged || i < in[lane].length ? in[lane][i] : 0;
+            }
+            step(ragged ? in : null, i);
+            scramble();
+            for (int lane = 0; lane < _lanes; lane += 1) {
+                if (!ragged || i < in[lane].length) {
+                    out[lane][i] = _c[lane];
+                }
+            }
+        }
+    }
+
+    /** Convert the messages IN, each consisting of characters of my
+     *  alphabet, one per lane, returning the results. */
+    String[] convert(String[] in) {
+        Alphabet alpha = _spec.alphabet();
+        int[][] msgs = new int[_lanes][], results = new int[_lanes][];
+        for (int lane = 0; lane < _lanes; lane += 1) {
+            msgs[lane] = new int[in[lane].length()];
+            results[lane] = new int[in[lane].length()];
+            for (int i = 0; i < msgs[lane].length; i += 1) {
+                msgs[lane][i] = alpha.toInt(in[lane].charAt(i));
+            }
+        }
+        convert(msgs, results);
+        String[] result = new String[_lanes];
+        for (int lane = 0; lane < _lanes; lane += 1) {
+            char[] chars = new char[results[lane].length];
+            for (int i = 0; i < chars.length; i += 1) {
+                chars[i] = alpha.toChar(results[lane][i]);
+            }
+            result[lane] = new String(chars);
+        }
+        return result;
+    }
+
+    /** Advance the rotors of every lane as for one keystroke, as
+     *  MachineSpec.step does, except that if IN is non-null, lanes whose
+     *  messages IN[L] have no character I do not move. */
+    private void step(int[][] in, int i) {
+        int last = _slots - 1;
+        for (int k = _firstMoving; k < last; k += 1) {
+            if (_notches[k] == null) {
+                continue;
+            }
+            int[] posns = _posns[k], right = _posns[k + 1];
+            boolean[] notches = _notches[k], rightNotches = _notches[k + 1];
+            for (int lane = 0; lane < _lanes; lane += 1) {
+                _moves[lane] = notches[posns[lane]]
+                    || (rightNotches != null && rightNotches[right[lane]]);
+            }
+            advance(posns, in, i);
+        }
+        if (_notches[last] != null) {
+            for (int lane = 0; lane < _lanes; lane += 1) {
+                _moves[lane] = true;
+            }
+            advance(_posns[last], in, i);
+        }
+    }
+
+    /** Advance POSNS[L] for each lane L marked in _moves, skipping lanes
+     *  whose messages IN[L] (if IN is non-null) have no character I. */
+    private void advance(int[] posns, int[][] in, int i) {
+        for (int lane = 0; lane < _lanes; lane += 1) {
+            if (_moves[lane] && (in == null || i < in[lane].length)) {
+                posns[lane] = posns[lane] + 1 == _size ? 0 : posns[lane] + 1;
+            }
+        }
+    }
+
+    /** Pass the character _c[L] of each lane L through its plugboard, its
+     *  rotors and back. */
+    private void scramble() {
+        for (int lane = 0; lane < _lanes; lane += 1) {
+            _c[lane] = _plug[lane * _size + _c[lane]];
+        }
+        for (int k = _slots - 1; k >= 0; k -= 1) {
+            int[] posns = _posns[k], table = _forward[k];
+            if (table == null) {
+                for (int lane = 0; lane < _lanes; lane += 1) {
+                    _c[lane] = _spec.convertForward(k, _c[lane], posns[lane]);
+                }
+            } else {
+                for (int lane = 0; lane < _lanes; lane += 1) {
+                    _c[lane] = table[posns[lane] * _size + _c[lane]];
+                }
+            }
+        }
+        for (int k = 1; k < _slots; k += 1) {
+            int[] posns = _posns[k], table = _backward[k];
+            if (table == null) {
+                for (int lane = 0; lane < _lanes; lane += 1) {
+                    _c[lane] = _spec.convertBackward(k, _c[lane],
+                                                     posns[lane]);
+                }
+            } else {
+                for (int lane = 0; lane < _lanes; lane += 1) {
+                    _c[lane] = table[posns[lane] * _size + _c[lane]];
+                }
+            }
+        }
+        for (int lane = 0; lane < _lanes; lane += 1) {
+            _c[lane] = _plug[lane * _size + _c[lane]];
+        }
+    }
+
+    /** The machine description shared by all lanes. */
+    private final MachineSpec _spec;
+
+    /** Number of lanes. */
+    private final int _lanes;
+
+    /** Size of the alphabet. */
+    private final int _size;
+
+    /** Number of rotor slots. */
+    private final int _slots;
+
+    /** First slot with a pawl. */
+    private final int _firstMoving;
+
+    /** _posns[K][L] is the setting of the rotor in slot K in lane L. */
+    private final int[][] _posns;
+
+    /** _plug[L * size + C] is the plugboard image of C in lane L. */
+    private final int[] _plug;
+
+    /** _forward[K][P * size + C] is the conversion of C by the rotor in
+     *  slot K at setting P, or null if not tabulated. */
+    private final int[][] _forward;
+
+    /** Like _forward, for the inverse conversions. */
+    private final int[][] _backward;
+
+    /** _notches[K][P] is true iff the rotor in slot K has a notch at P;
+     *  null for rotors that do not move. */
+    private final boolean[][] _notches;
+
+    /** Marks the lanes whose rotor advances in the current stepping
+     *  stage. */
+    private final boolean[] _moves;
+
+    /** The character in each lane at the current stage of conversion. */
+    private final int[] _c;
+
+}
@@ -0,0 +1,327 @@
+package enigma;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import static enigma.EnigmaException.*;
+
+/** Applies an Enigma machine to input text supplied a buffer at a time.
+ *  Settings lines (whose first token is "*") are collected and used to
+ *  set up the machine, blank lines are copied to the output, and all
+ *  other lines are converted as they arrive, so that message lines of
+ *  any length may be processed in bounded space.
+ *  @author Peter Sorensen
+ */
+class LineProcessor {
+
+    /** A processor applying M to its input and writing the results to
+     *  OUTPUT. */
+    LineProcessor(Machine m, Writer output) {
+        _m = m;
+        _output = output;
+        _converted = new char[BUFFER_SIZE + BUFFER_SIZE / Machine.GROUP_SIZE
+                              + 1];
+    }
+
+    /** Use SPLITTER to convert stretches of message text given to
+     *  process(char[], int, int) on several threads at once. */
+    void setSplitter(SplitConverter splitter) {
+        _splitter = splitter;
+    }
+
+    /** Process the input characters BUF[START .. END-1], which continue
+     *  the input processed so far. */
+    void process(char[] buf, int start, int end) throws IOException {
+        int i = start;
+        while (i < end) {
+            char c = buf[i];
+            if (_afterCR) {
+                _afterCR = false;
+                if (c == '\n') {
+                    i += 1;
+                    continue;
+                }
+            }
+            if (c == '\n' || c == '\r') {
+                endLine();
+                _afterCR = c == '\r';
+                i += 1;
+            } else if (_lineState == MESSAGE) {
+                int j = i;
+                int limit = _splitter == null ? Math.min(end, i + BUFFER_SIZE)
+                    : end;
+                while (j < limit && buf[j] != '\n' && buf[j] != '\r') {
+                    j += 1;
+                }
+                int n = j - i;
+                long began = System.nanoTime();
+                if (_splitter == null) {
+                    n = _m.convertMore(buf, i, n, _converted, 0);
+                } else {
+                    if (_converted.length < n + n / Machine.GROUP_SIZE + 1) {
+                        _converted =
+                            new char[n + n / Machine.GROUP_SIZE + 1];
+                    }
+                    n = _splitter.convertMore(_m, buf, i, n, _converted, 0);
+                }
+                _messageNanos += System.nanoTime() - began;
+                _output.write(_converted, 0, n);
+                i = j;
+            } else if (_lineState == SETTINGS
+                       || Character.isWhitespace(c)) {
+                _pending.append(c);
+                i += 1;
+            } else if (c == '*') {
+                _lineState = SETTINGS;
+            } else {
+                startMessage();
+            }
+        }
+    }
+
+    /** Process the single-byte input characters in BUF, from its start
+     *  to its limit, as for process(char[], int, int).  My output must
+     *  be a ByteWriter, into which converted message text is put
+     *  directly. */
+    void process(ByteBuffer buf) throws IOException {
+        ByteWriter output = (ByteWriter) _output;
+        int i = 0, end = buf.limit();
+        while (i < end) {
+            char c = (char) (buf.get(i) & 0xff);
+            if (_afterCR) {
+                _afterCR = false;
+                if (c == '\n') {
+                    i += 1;
+                    continue;
+                }
+            }
+            if (c == '\n' || c == '\r') {
+                endLine();
+                _afterCR = c == '\r';
+                i += 1;
+            } else if (_lineState == MESSAGE) {
+                int j = i;
+                while (j < end && buf.get(j) != '\n' && buf.get(j) != '\r') {
+                    j += 1;
+                }
+                int n = j - i;
+                ByteBuffer out = output.reserve(n + n / Machine.GROUP_SIZE
+                                                + 1);
+                long began = System.nanoTime();
+                _m.convertMore(buf, i, n, out);
+                _messageNanos += System.nanoTime() - began;
+                i = j;
+            } else if (_lineState == SETTINGS
+                       || Character.isWhitespace(c)) {
+                _pending.append(c);
+                i += 1;
+            } else if (c == '*') {
+                _lineState = SETTINGS;
+            } else {
+                startMessage();
+            }
+        }
+    }
+
+    /** Finish processing at the end of the input.  It is an error if
+     *  the input contained no settings. */
+    void finish() throws IOException {
+        if (_lineState != LEADING || _pending.length() > 0) {
+            endLine();
+        }
+        if (!_configured) {
+            throw error("Invalid Configuration, Settings, or Input.");
+        }
+    }
+
+    /** Return a checkpoint of my state and my machine's, as it stands
+     *  between calls to process, recording that INPUT bytes of input
+     *  have been processed and OUTPUT bytes of output written. */
+    Checkpoint checkpoint(long input, long output) {
+        Rotor[] slots = _m.getSlots();
+        int[] positions = new int[_settings == null ? 0 : slots.length];
+        for (int i = 0; i < positions.length; i += 1) {
+            positions[i] = slots[i].setting();
+        }
+        return new Checkpoint(input, output, _lineState, _pending.toString(),
+                              _afterCR, _settings, positions,
+                              _m.grouped());
+    }
+
+    /** Return myself and my machine to the state recorded in CP, which
+     *  must have been produced by checkpoint for a processor of a
+     *  machine with the same configuration. */
+    void restore(Checkpoint cp) {
+        _lineState = cp.lineState();
+        _pending.setLength(0);
+        _pending.append(cp.pending());
+        _afterCR = cp.afterCR();
+        _settings = cp.settings();
+        _configured = _settings != null;
+        if (_configured) {
+            setUp(_m, _settings);
+            int[] positions = cp.positions();
+            Rotor[] slots = _m.getSlots();
+            if (positions.length != slots.length) {
+                throw error("checkpoint does not match configuration");
+            }
+            for (int i = 0; i < slots.length; i += 1) {
+                slots[i].set(positions[i]);
+            }
+        }
+        _m.setGrouped(cp.grouped());
+    }
+
+    /** Begin converting a message line, whose leading whitespace is
+     *  _pending. */
+    private void startMessage() throws IOException {
+        if (!_configured) {
+            setUp(_m, _pending.toString());
+        }
+        long start = System.nanoTime();
+        String converted = _m.convert(_pending.toString());
+        _messageNanos = System.nanoTime() - start;
+        _output.write(converted);
+        _pending.setLength(0);
+        _lineState = MESSAGE;
+    }
+
+    /** Finish processing the current input line. */
+    private void endLine() throws IOException {
+        String line = _pending.toString();
+        _pending.setLength(0);
+        int state = _lineState;
+        _lineState = LEADING;
+        if (state == SETTINGS && (!_configured || isSettings(line))) {
+            setUp(_m, line);
+            _configured = true;
+            _settings = line;
+            return;
+        }
+        if (!_configured) {
+            setUp(_m, line);
+        }
+        if (state == SETTINGS) {
+            _output.write(_m.convert(line));
+        }
+        if (state == MESSAGE) {
+            Metrics.MESSAGES.increment();
+            Metrics.MESSAGE_NANOS.record(_messageNanos);
+        }
+        _output.write(NEWLINE);
+    }
+
+    /** Return true iff LINE's first token is "*". */
+    static boolean isSettings(CharSequence line) {
+        int i;
+        for (i = 0; i < line.length(); i += 1) {
+            if (!Character.isWhitespace(line.charAt(i))) {
+                break;
+            }
+        }
+        return i < line.length() && line.charAt(i) == '*'
+            && (i + 1 == line.length()
+                || Character.isWhitespace(line.charAt(i + 1)));
+    }
+
+    /** Set M according to the specification given on SETTINGS,
+     *  which must have the format specified in the assignment. */
+    static void setUp(Machine M, String settings) {
+        Metrics.SETUPS.increment();
+        Alphabet alphabet = M.alphabet();
+        try {
+            if (!settings.startsWith("*")) {
+                throw error("no rotors in machine");
+            }
+            int plugIndex = settings.indexOf("(");
+            if (plugIndex >= 0) {
+                String plug = settings.substring(plugIndex);
+                M.setPlugboard(new Permutation(plug, alphabet));
+                settings = settings.trim().substring(1, plugIndex).trim();
+            } else {
+                M.setPlugboard(new Permutation("", alphabet));
+                settings = settings.trim().substring(1).trim();
+            }
+            String[] rotlist;
+            String four = settings.substring(
+                    settings.lastIndexOf(" ") + 1, settings.length());
+            if (four.length() != M.numRotors() - 1) {
+                throw error("Settings is an incorrectly sized string!");
+            }
+            rotlist = settings.substring(
+                    0, settings.lastIndexOf(" ")).trim().split(" ");
+            if (rotlist.length != M.numRotors()) {
+                throw error("Wrong number of arguments");
+            }
+            M.insertRotors(rotlist);
+            int k = 0;
+            for (Rotor each : M.getSlots()) {
+                if (each instanceof MovingRotor) {
+                    k++;
+                }
+            }
+            if (k != M.numPawls()) {
+                throw error("Too many MovingRotors for number of pawls!");
+            }
+            M.setRotors(four);
+            if (!(M.getSlots()[0] instanceof Reflector)) {
+                throw error("first rotor must be a reflector");
+            }
+        } catch (StringIndexOutOfBoundsException
+                | NoSuchElementException
+                | NullPointerException excp) {
+            throw error("Invalid Configuration, Settings, or Input.");
+        }
+    }
+
+    /** Size in characters of the input and output buffers. */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /** Line terminator written after each output line. */
+    static final String NEWLINE = System.lineSeparator();
+
+    /** Line state: at the start of a line, having seen only whitespace. */
+    private static final int LEADING = 0;
+
+    /** Line state: within a line whose first non-blank is '*'. */
+    private static final int SETTINGS = 1;
+
+    /** Line state: within a message line. */
+    private static final int MESSAGE = 2;
+
+    /** The machine I apply. */
+    private final Machine _m;
+
+    /** Destination for processed lines. */
+    private final Writer _output;
+
+    /** The state of the line currently being processed. */
+    private int _lineState = LEADING;
+
+    /** Text of the current line not yet processed: its leading
+     *  whitespace, or all of it for a settings line. */
+    private StringBuilder _pending = new StringBuilder();
+
+    /** True iff the last input character was a carriage return. */
+    private boolean _afterCR;
+
+    /** Time spent converting the current message line so far, in
+     *  nanoseconds. */
+    private long _messageNanos;
+
+    /** The settings line that last set up the machine, or null. */
+    private String _settings;
+
+    /** True iff the machine has been set up by a settings line. */
+    private boolean _configured;
+
+    /** If non-null, used to convert message text concurrently. */
+    private SplitConverter _splitter;
+
+    /** Buffer for converted characters. */
+    private char[] _converted;
+
+}
@@ -1,5 +1,9 @@
 package enigma;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 
 import static enigma.EnigmaException.*;
@@ -21,6 +25,33 @@ class Machine {
 
     }
 
+    /** Return a new machine like me that may be used independently of
+     *  me.  Its slots hold copies of my rotors in their current settings,
+     *  and its plugboard and position within the current output group
+     *  are the same as mine. */
+    Machine copy() {
+        Machine result =
+            new Machine(_alphabet, _slots.length, _pawls, _allRotors);
+        for (int i = 0; i < _slots.length; i++) {
+            if (_slots[i] != null) {
+                result._slots[i] = _slots[i].copy();
+            }
+        }
+        result._plug = _plug;
+        result._grouped = _grouped;
+        result._byteIndex = _byteIndex;
+        result._indexByte = _indexByte;
+        result._course = _course;
+        result._courseSteps = _courseSteps;
+        result._courseEnd = _courseEnd;
+        return result;
+    }
+
+    /** Return my alphabet. */
+    Alphabet alphabet() {
+        return _alphabet;
+    }
+
     /** Return the number of rotor slots I have. */
     int numRotors() {
         return _slots.length;
@@ -31,14 +62,21 @@ class Machine {
         return this._pawls;
     }
 
-    /** Set my rotor slots to the rotors named ROTORS from my set of
-     *  available rotors (ROTORS[0] names the reflector).
-     *  Initially, all rotors are set at their 0 setting. */
+    /** Return all the rotors available for insertion into my slots. */
+    Collection<Rotor> allRotors() {
+        return _allRotors;
+    }
+
+    /** Set my rotor slots to copies of the rotors named ROTORS from my
+     *  set of available rotors (ROTORS[0] names the reflector), so that
+     *  machines sharing a set of available rotors do not disturb one
+     *  another.  Initially, all rotors are set at their 0 setting. */
     void insertRotors(String[] rotors) {
         for (int i = 0; i < _slots.length; i++) {
             for (Rotor each : _allRotors) {
                 if (each.name().equalsIgnoreCase(rotors[i])) {
-                    _slots[i] = each;
+                    _slots[i] = each.copy();
+                    _slots[i].set(0);
                     break;
                 }
             }
@@ -60,11 +98,114 @@ class Machine {
         _plug = plugboard;
     }
 
+    /** Return a snapshot of my current state: the rotors in my slots and
+     *  their settings, my plugboard, and my position within the current
+     *  output group. */
+    Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /** Return me to the state recorded in SNAP, which must be a snapshot
+     *  of me, in time proportional to my number of slots. */
+    void restore(Snapshot snap) {
+        if (snap._owner != this) {
+            throw error("snapshot is of another machine");
+        }
+        for (int i = 0; i < _slots.length; i++) {
+            _slots[i] = snap._rotors[i];
+            if (_slots[i] != null) {
+                _slots[i].set(snap.position(i));
+            }
+        }
+        _plug = snap._plug;
+        _grouped = snap._grouped;
+    }
+
+    /** An immutable record of the state of a Machine, from which it may
+     *  be restored without parsing settings.  Rotor settings are packed
+     *  into a single long when they fit, and otherwise kept in an
+     *  array. */
+    static final class Snapshot {
+
+        /** A snapshot of the current state of M. */
+        private Snapshot(Machine m) {
+            _owner = m;
+            _rotors = m._slots.clone();
+            _plug = m._plug;
+            _grouped = m._grouped;
+            _bits = Integer.SIZE
+                - Integer.numberOfLeadingZeros(m._alphabet.size() - 1);
+            long packed = 0;
+            int[] posns = null;
+            if (_bits * _rotors.length > Long.SIZE) {
+                posns = new int[_rotors.length];
+            }
+            for (int i = 0; i < _rotors.length; i++) {
+                int posn = _rotors[i] == null ? 0 : _rotors[i].setting();
+                if (posns == null) {
+                    packed |= (long) posn << (i * _bits);
+                } else {
+                    posns[i] = posn;
+                }
+            }
+            _packed = packed;
+            _posns = posns;
+        }
+
+        /** Return the setting recorded for the rotor in slot K. */
+        int position(int k) {
+            if (_posns != null) {
+                return _posns[k];
+            }
+            return (int) (_packed >>> (k * _bits)) & ((1 << _bits) - 1);
+        }
+
+        /** Return the plugboard recorded. */
+        Permutation plugboard() {
+            return _plug;
+        }
+
+        /** The machine whose state I record. */
+        private final Machine _owner;
+
+        /** The rotors in each of its slots. */
+        private final Rotor[] _rotors;
+
+        /** Its plugboard. */
+        private final Permutation _plug;
+
+        /** Its position within the current output group. */
+        private final int _grouped;
+
+        /** Number of bits used for each packed rotor setting. */
+        private final int _bits;
+
+        /** The rotor settings, _bits bits per slot, slot 0 lowest, if
+         *  _posns is null. */
+        private final long _packed;
+
+        /** The rotor settings, indexed by slot, if they do not fit in
+         *  _packed. */
+        private final int[] _posns;
+    }
+
     /** Returns the result of converting the input character C (as an
      *  index in the range 0..alphabet size - 1), after first advancing
      *  the machine. */
     int convert(int c) {
         c = _plug.permute(c);
+        step();
+        for (int i = _slots.length - 1; i >= 0; i--) {
+            c = _slots[i].convertForward(c);
+        }
+        for (int i = 1; i < _slots.length; i++) {
+            c = _slots[i].convertBackward(c);
+        }
+        return _plug.permute(c);
+    }
+
+    /** Advance my rotors as for a single keystroke. */
+    void step() {
         for (int i = _slots.length - _pawls; i < _slots.length - 1; i++) {
             if (_slots[i] instanceof MovingRotor) {
                 if (_slots[i + 1].atNotch() || _slots[i].atNotch()) {
@@ -73,33 +214,271 @@ class Machine {
             }
         }
         _slots[_slots.length - 1].advance();
-        for (int i = _slots.length - 1; i >= 0; i--) {
-            c = _slots[i].convertForward(c);
+    }
+
+    /** Advance my rotors as for N keystrokes (N >= 0), in time that does
+     *  not depend on N.  The course of my rotors (see Schedule.Course)
+     *  is kept, so that advancing again from the same settings or from
+     *  where the last advance left them only evaluates it; otherwise a
+     *  new course is built, in time that depends on the number and
+     *  notches of my rotors and my alphabet size, unless N is small
+     *  enough that stepping is quicker. */
+    void advance(long n) {
+        if (n <= 0) {
+            return;
         }
-        for (int i = 1; i < _slots.length; i++) {
-            c = _slots[i].convertBackward(c);
+        int[] posns = new int[_slots.length];
+        BitSet[] notches = new BitSet[_slots.length];
+        for (int i = 0; i < _slots.length; i++) {
+            posns[i] = _slots[i].setting();
+            if (_slots[i] instanceof MovingRotor) {
+                notches[i] = ((MovingRotor) _slots[i]).notches();
+            }
+        }
+        long t = 0;
+        if (_course != null && Arrays.equals(posns, _courseEnd)
+            && _course.moves(notches) && _courseSteps <= Long.MAX_VALUE - n) {
+            t = _courseSteps;
+        } else if (_course == null || !_course.startsAt(posns, notches)) {
+            if (n <= MAX_STEPPED) {
+                for (long k = 0; k < n; k += 1) {
+                    step();
+                }
+                return;
+            }
+            _course = new Schedule.Course(posns, notches, _pawls,
+                                          _alphabet.size());
+        }
+        _courseSteps = t + n;
+        _course.positions(_courseSteps, posns);
+        _courseEnd = posns.clone();
+        for (int i = 0; i < _slots.length; i++) {
+            if (posns[i] != _slots[i].setting()) {
+                _slots[i].set(posns[i]);
+            }
         }
-        return _plug.permute(c);
     }
 
     /** Returns the encoding/decoding of MSG, updating the state of
      *  the rotors accordingly. */
     String convert(String msg) {
-        msg = msg.replaceAll(" ", "").toUpperCase();
-        int blanks = 0;
-        String ret = "";
-        for (int i = 0; i < msg.length(); i++) {
-            if (blanks == 5) {
-                ret += " ";
-                i--;
-                blanks = 0;
-            } else {
-                ret += _alphabet.toChar(convert(
-                        _alphabet.toInt(msg.charAt(i))));
-                blanks++;
+        char[] in = msg.toCharArray();
+        char[] out = new char[in.length + in.length / GROUP_SIZE];
+        return new String(out, 0, convert(in, 0, in.length, out, 0));
+    }
+
+    /** Convert the LEN characters of IN starting at OFF as a new message,
+     *  writing the result into OUT starting at OUTOFF and returning the
+     *  number of characters written.  Blanks in the input are skipped,
+     *  letters are upper-cased, and the output is broken into groups of
+     *  GROUP_SIZE characters separated by single blanks.  OUT must have
+     *  room for LEN + LEN / GROUP_SIZE characters. */
+    int convert(char[] in, int off, int len, char[] out, int outOff) {
+        _grouped = 0;
+        return convertMore(in, off, len, out, outOff);
+    }
+
+    /** As for convert(IN, OFF, LEN, OUT, OUTOFF), but continues the
+     *  message and grouping begun by the last call to convert or
+     *  convertMore rather than starting a new message. */
+    int convertMore(char[] in, int off, int len, char[] out, int outOff) {
+        int k = outOff, converted = 0;
+        for (int i = off, end = off + len; i < end; i++) {
+            char c = in[i];
+            if (c == ' ') {
+                continue;
+            }
+            if (_grouped == GROUP_SIZE) {
+                out[k++] = ' ';
+                _grouped = 0;
+            }
+            out[k++] = convert(Character.toUpperCase(c));
+            _grouped++;
+            converted++;
+        }
+        Metrics.CHARS_CONVERTED.add(converted);
+        return k - outOff;
+    }
+
+    /** As for convertMore(char[], int, int, char[], int), but converts
+     *  the single-byte characters IN[OFF .. OFF+LEN-1] (absolute
+     *  positions, leaving IN's position unchanged), putting the result
+     *  into OUT at its position.  Throws BufferOverflowException if OUT
+     *  has no room for the result. */
+    void convertMore(ByteBuffer in, int off, int len, ByteBuffer out) {
+        if (in.hasArray() && out.hasArray()
+            && out.remaining() >= len + len / GROUP_SIZE + 1) {
+            int n = convertMore(in.array(), in.arrayOffset() + off, len,
+                                out.array(),
+                                out.arrayOffset() + out.position());
+            out.position(out.position() + n);
+            return;
+        }
+        int[] index = byteIndex();
+        int converted = 0;
+        for (int i = off, end = off + len; i < end; i++) {
+            byte b = in.get(i);
+            if (b == ' ') {
+                continue;
+            }
+            if (_grouped == GROUP_SIZE) {
+                out.put((byte) ' ');
+                _grouped = 0;
+            }
+            out.put(_indexByte[convert(toIndex(index, b))]);
+            _grouped++;
+            converted++;
+        }
+        Metrics.CHARS_CONVERTED.add(converted);
+    }
+
+    /** As for convertMore(char[], int, int, char[], int), but converts
+     *  the single-byte characters IN[OFF .. OFF+LEN-1] into OUT starting
+     *  at OUTOFF, returning the number of bytes written.  Bytes are
+     *  mapped to and from alphabet indices through tables, with no
+     *  character decoding. */
+    int convertMore(byte[] in, int off, int len, byte[] out, int outOff) {
+        int[] index = byteIndex();
+        int k = outOff, converted = 0;
+        for (int i = off, end = off + len; i < end; i++) {
+            byte b = in[i];
+            if (b == ' ') {
+                continue;
+            }
+            if (_grouped == GROUP_SIZE) {
+                out[k++] = ' ';
+                _grouped = 0;
+            }
+            out[k++] = _indexByte[convert(toIndex(index, b))];
+            _grouped++;
+            converted++;
+        }
+        Metrics.CHARS_CONVERTED.add(converted);
+        return k - outOff;
+    }
+
+    /** Convert in place each of the characters BUF[OFF .. OFF+LEN-1]
+     *  that is in my alphabet once upper-cased, continuing the current
+     *  message.  Other characters, including blanks, are left unchanged,
+     *  and the output is not grouped. */
+    void convertInPlace(char[] buf, int off, int len) {
+        int converted = 0;
+        for (int i = off, end = off + len; i < end; i++) {
+            char c = Character.toUpperCase(buf[i]);
+            if (_alphabet.contains(c)) {
+                buf[i] = convert(c);
+                converted++;
+            }
+        }
+        Metrics.CHARS_CONVERTED.add(converted);
+    }
+
+    /** As for convertInPlace(char[], int, int), but for the single-byte
+     *  characters BUF[OFF .. OFF+LEN-1]. */
+    void convertInPlace(byte[] buf, int off, int len) {
+        int[] index = byteIndex();
+        int converted = 0;
+        for (int i = off, end = off + len; i < end; i++) {
+            int c = index[buf[i] & BYTE_MASK];
+            if (c >= 0) {
+                buf[i] = _indexByte[convert(c)];
+                converted++;
+            }
+        }
+        Metrics.CHARS_CONVERTED.add(converted);
+    }
+
+    /** Check that every character of my alphabet is a single byte, as
+     *  needed by the methods that convert bytes. */
+    void checkSingleByte() {
+        byteIndex();
+    }
+
+    /** Return the alphabet index of the upper-cased single-byte character
+     *  B, according to INDEX (from byteIndex()). */
+    private int toIndex(int[] index, byte b) {
+        int c = index[b & BYTE_MASK];
+        if (c < 0) {
+            throw error("character not in alphabet");
+        }
+        return c;
+    }
+
+    /** Return a table giving the alphabet index of each single-byte
+     *  character (upper-cased), or -1 if it is not in my alphabet,
+     *  building it and its inverse, _indexByte, if needed.  It is an
+     *  error if some character of my alphabet is not a single byte. */
+    private int[] byteIndex() {
+        if (_byteIndex == null) {
+            int size = _alphabet.size();
+            byte[] indexByte = new byte[size];
+            for (int i = 0; i < size; i++) {
+                char c = _alphabet.toChar(i);
+                if (c > BYTE_MASK) {
+                    throw error("alphabet has multi-byte characters");
+                }
+                indexByte[i] = (byte) c;
+            }
+            int[] index = new int[BYTE_MASK + 1];
+            for (int b = 0; b <= BYTE_MASK; b++) {
+                char c = Character.toUpperCase((char) b);
+                index[b] = _alphabet.contains(c) ? _alphabet.toInt(c) : -1;
             }
+            _indexByte = indexByte;
+            _byteIndex = index;
         }
-        return ret;
+        return _byteIndex;
+    }
+
+    /** Convert the remaining characters of IN as a new message, writing
+     *  the result to OUT as for convert(char[], int, int, char[], int).
+     *  Throws BufferOverflowException if OUT has no room for the
+     *  result. */
+    void convert(CharBuffer in, CharBuffer out) {
+        if (in.hasArray() && out.hasArray()
+            && out.remaining() >= in.remaining()
+                                  + in.remaining() / GROUP_SIZE) {
+            int len = in.remaining();
+            int n = convert(in.array(), in.arrayOffset() + in.position(),
+                            len, out.array(),
+                            out.arrayOffset() + out.position());
+            in.position(in.position() + len);
+            out.position(out.position() + n);
+            return;
+        }
+        _grouped = 0;
+        int converted = 0;
+        while (in.hasRemaining()) {
+            char c = in.get();
+            if (c == ' ') {
+                continue;
+            }
+            if (_grouped == GROUP_SIZE) {
+                out.put(' ');
+                _grouped = 0;
+            }
+            out.put(convert(Character.toUpperCase(c)));
+            _grouped++;
+            converted++;
+        }
+        Metrics.CHARS_CONVERTED.add(converted);
+    }
+
+    /** Returns the encoding/decoding of the character C, which must be in
+     *  my alphabet, after first advancing the machine. */
+    char convert(char c) {
+        return _alphabet.toChar(convert(_alphabet.toInt(c)));
+    }
+
+    /** Return the number of characters in the current output group. */
+    int grouped() {
+        return _grouped;
+    }
+
+    /** Set the number of characters in the current output group to
+     *  GROUPED, where 0 <= GROUPED <= GROUP_SIZE. */
+    void setGrouped(int grouped) {
+        _grouped = grouped;
     }
 
     /** Returns whether or not an rotor is set to it's notch to start. */
@@ -110,6 +489,36 @@ class Machine {
         return _slots;
     }
 
+    /** Number of characters in each output group of convert(String). */
+    static final int GROUP_SIZE = 5;
+
+    /** Largest number of keystrokes for which advance steps my rotors
+     *  rather than building their course. */
+    static final int MAX_STEPPED = 1 << 10;
+
+    /** Mask selecting the low-order byte of an int. */
+    private static final int BYTE_MASK = 0xff;
+
+    /** Maps each single-byte character, upper-cased, to its alphabet
+     *  index, or -1; null until needed. */
+    private int[] _byteIndex;
+
+    /** Maps each alphabet index to its character as a single byte. */
+    private byte[] _indexByte;
+
+    /** Number of characters written to the current output group. */
+    private int _grouped;
+
+    /** The course of my rotors last used by advance, or null. */
+    private Schedule.Course _course;
+
+    /** Number of keystrokes along _course to which advance last moved
+     *  my rotors. */
+    private long _courseSteps;
+
+    /** Rotor settings after _courseSteps keystrokes along _course. */
+    private int[] _courseEnd;
+
     /** Common alphabet of my rotors. */
     private final Alphabet _alphabet;
 
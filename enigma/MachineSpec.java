@@ -0,0 +1,131 @@
+package enigma;
+
+import java.util.BitSet;
+
+import static enigma.EnigmaException.*;
+
+/** An immutable description of an Enigma machine with its rotors
+ *  inserted: its alphabet, the wiring and notches of the rotor in each
+ *  slot, and its number of pawls.  A MachineSpec holds no rotor settings
+ *  or plugboard, so any number of threads may share one, each
+ *  encrypting with its own MachineState.
+ *  @author Peter Sorensen
+ */
+final class MachineSpec {
+
+    /** The specification of M, whose rotors must have been inserted.
+     *  Changes to M's slots do not affect the result. */
+    MachineSpec(Machine m) {
+        _alphabet = m.alphabet();
+        _pawls = m.numPawls();
+        Rotor[] slots = m.getSlots();
+        _rotors = new Rotor[slots.length];
+        _notches = new BitSet[slots.length];
+        for (int i = 0; i < slots.length; i += 1) {
+            if (slots[i] == null) {
+                throw error("rotors not inserted");
+            }
+            _rotors[i] = slots[i].copy();
+            if (slots[i] instanceof MovingRotor) {
+                _notches[i] = ((MovingRotor) slots[i]).notches();
+            }
+        }
+    }
+
+    /** Return a new state for this machine, with all rotors at their 0
+     *  settings and no plugboard connections. */
+    MachineState newState() {
+        return new MachineState(this);
+    }
+
+    /** Return my alphabet. */
+    Alphabet alphabet() {
+        return _alphabet;
+    }
+
+    /** Return the number of rotor slots I have. */
+    int numRotors() {
+        return _rotors.length;
+    }
+
+    /** Return the number of pawls I have. */
+    int numPawls() {
+        return _pawls;
+    }
+
+    /** Return the name of the rotor in slot K. */
+    String rotorName(int k) {
+        return _rotors[k].name();
+    }
+
+    /** Return true iff the rotor in slot K can move. */
+    boolean rotates(int k) {
+        return _notches[k] != null;
+    }
+
+    /** Change POSNS, the settings of the rotors in my slots, as for a
+     *  single keystroke. */
+    void step(int[] posns) {
+        int last = posns.length - 1, size = _alphabet.size();
+        for (int i = posns.length - _pawls; i < last; i += 1) {
+            if (_notches[i] != null
+                && (atNotch(i + 1, posns[i + 1]) || atNotch(i, posns[i]))) {
+                posns[i] = posns[i] + 1 == size ? 0 : posns[i] + 1;
+            }
+        }
+        if (_notches[last] != null) {
+            posns[last] = posns[last] + 1 == size ? 0 : posns[last] + 1;
+        }
+    }
+
+    /** Change POSNS as for N keystrokes. */
+    void advance(int[] posns, long n) {
+        Schedule.jump(posns, _notches, _pawls, _alphabet.size(), n);
+    }
+
+    /** Return the result of passing C (an index into my alphabet) through
+     *  plugboard PLUG, my rotors at settings POSNS and back, without
+     *  stepping. */
+    int convert(int[] posns, Permutation plug, int c) {
+        c = plug.permute(c);
+        for (int i = _rotors.length - 1; i >= 0; i -= 1) {
+            c = _rotors[i].convertForward(c, posns[i]);
+        }
+        for (int i = 1; i < _rotors.length; i += 1) {
+            c = _rotors[i].convertBackward(c, posns[i]);
+        }
+        return plug.permute(c);
+    }
+
+    /** Return the conversion of P by the rotor in slot K at setting
+     *  POSN, as for Rotor.convertForward. */
+    int convertForward(int k, int p, int posn) {
+        return _rotors[k].convertForward(p, posn);
+    }
+
+    /** Return the conversion of E by the inverse of the rotor in slot K
+     *  at setting POSN, as for Rotor.convertBackward. */
+    int convertBackward(int k, int e, int posn) {
+        return _rotors[k].convertBackward(e, posn);
+    }
+
+    /** Return true iff the rotor in slot K is at a notch at setting
+     *  POSN. */
+    boolean atNotch(int k, int posn) {
+        return _notches[k] != null && _notches[k].get(posn);
+    }
+
+    /** The common alphabet of my rotors. */
+    private final Alphabet _alphabet;
+
+    /** The number of pawls. */
+    private final int _pawls;
+
+    /** The rotors in my slots, used only for their wiring. */
+    private final Rotor[] _rotors;
+
+    /** The notch positions of the rotor in each slot, or null for rotors
+     *  that do not move. */
+    private final BitSet[] _notches;
+
+}
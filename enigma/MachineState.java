@@ -0,0 +1,107 @@
+package enigma;
+
+import java.util.Arrays;
+
+import static enigma.EnigmaException.*;
+
+/** The changeable part of an Enigma machine: the settings of its rotors
+ *  and its plugboard.  Each thread encrypting with a shared MachineSpec
+ *  should use its own MachineState.
+ *  @author Peter Sorensen
+ */
+class MachineState {
+
+    /** A state for machines described by SPEC, with all rotors at their
+     *  0 settings and no plugboard connections. */
+    MachineState(MachineSpec spec) {
+        _spec = spec;
+        _posns = new int[spec.numRotors()];
+        _plug = new Permutation("", spec.alphabet());
+    }
+
+    /** Return a copy of me that may be changed independently of me. */
+    MachineState copy() {
+        MachineState result = new MachineState(_spec, _plug);
+        System.arraycopy(_posns, 0, result._posns, 0, _posns.length);
+        return result;
+    }
+
+    /** A state for SPEC with plugboard PLUG, used by copy. */
+    private MachineState(MachineSpec spec, Permutation plug) {
+        _spec = spec;
+        _posns = new int[spec.numRotors()];
+        _plug = plug;
+    }
+
+    /** Return my machine's specification. */
+    MachineSpec spec() {
+        return _spec;
+    }
+
+    /** Set my rotors according to SETTING, which contains one character
+     *  for each rotor other than the reflector, as for
+     *  Machine.setRotors. */
+    void setRotors(String setting) {
+        if (setting.length() != _posns.length - 1) {
+            throw error("wrong number of rotor settings");
+        }
+        for (int i = 1; i < _posns.length; i += 1) {
+            _posns[i] = _spec.alphabet().toInt(setting.charAt(i - 1));
+        }
+    }
+
+    /** Return the settings of my rotors, indexed by slot. */
+    int[] positions() {
+        return Arrays.copyOf(_posns, _posns.length);
+    }
+
+    /** Set the settings of my rotors to POSNS, indexed by slot. */
+    void setPositions(int[] posns) {
+        System.arraycopy(posns, 0, _posns, 0, _posns.length);
+    }
+
+    /** Set the plugboard to PLUGBOARD. */
+    void setPlugboard(Permutation plugboard) {
+        _plug = plugboard;
+    }
+
+    /** Return the plugboard. */
+    Permutation plugboard() {
+        return _plug;
+    }
+
+    /** Advance my rotors as for a single keystroke. */
+    void step() {
+        _spec.step(_posns);
+    }
+
+    /** Advance my rotors as for N keystrokes. */
+    void advance(long n) {
+        _spec.advance(_posns, n);
+    }
+
+    /** Returns the result of converting the input character C (as an
+     *  index in the range 0..alphabet size - 1), after first advancing
+     *  the machine. */
+    int convert(int c) {
+        _spec.step(_posns);
+        return _spec.convert(_posns, _plug, c);
+    }
+
+    /** Returns the encoding/decoding of the character C, which must be in
+     *  my alphabet, after first advancing the machine. */
+    char convert(char c) {
+        Alphabet alpha = _spec.alphabet();
+        return alpha.toChar(convert(alpha.toInt(c)));
+    }
+
+    /** The specification of my machine. */
+    private final MachineSpec _spec;
+
+    /** The settings of the rotors in each slot. */
+    private final int[] _posns;
+
+    /** The plugboard. */
+    private Permutation _plug;
+
+}
@@ -1,12 +1,44 @@
 package enigma;
 
-import java.io.File;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static enigma.EnigmaException.*;
 
@@ -16,14 +48,71 @@ import static enigma.EnigmaException.*;
 public final class Main {
 
     /** Process a sequence of encryptions and decryptions, as
-     *  specified by ARGS, where 1 <= ARGS.length <= 3.
+     *  specified by ARGS, where 1 <= ARGS.length <= 3 after any leading
+     *  options of the form --NAME or --NAME=VALUE.
      *  ARGS[0] is the name of a configuration file.
      *  ARGS[1] is optional; when present, it names an input file
      *  containing messages.  Otherwise, input comes from the standard
      *  input.  ARGS[2] is optional; when present, it names an output
      *  file for processed messages.  Otherwise, output goes to the
      *  standard output. Exits normally if there are no errors in the input;
-     *  otherwise with code 1. */
+     *  otherwise with code 1.
+     *
+     *  Options:
+     *    --mmap  Memory-map the input and output files (both must be
+     *            given) and convert directly between them, when the
+     *            alphabet consists of single-byte characters.
+     *    --parallel[=N]  Convert the groups of messages following each
+     *            settings line concurrently, using N threads (by default,
+     *            one per processor).
+     *    --split[=N]  Convert long stretches of each message on N threads
+     *            (by default, one per processor).
+     *    --search[=K]  Instead of converting the input, treat its message
+     *            lines as ciphertext, try every rotor order and setting
+     *            the configuration allows (with no plugboard), and write
+     *            settings lines for the K (by default, 10) keys under
+     *            which a prefix of it decrypts to the text most like
+     *            natural language, each followed by its score.  Progress
+     *            is reported on the standard error.
+     *    --crib=CRIB[@N]  Instead of converting the input, treat its
+     *            message lines as ciphertext whose characters from
+     *            number N (by default, 0) on decrypt to CRIB, and write a
+     *            settings line, with the plugboard connections implied,
+     *            for each key consistent with that, found as by Turing's
+     *            Bombe.
+     *    --compile  Instead of converting messages, write the
+     *            configuration in ARGS[0] to the file named by ARGS[1]
+     *            in a compiled binary form, which may be given as the
+     *            configuration file of later runs and is loaded without
+     *            parsing.
+     *    --serve=ADDRESS  Instead of converting the input, load the
+     *            configuration and serve requests to convert messages
+     *            (see EnigmaServer) until terminated, listening on the
+     *            loopback TCP port ADDRESS if it is a number, and
+     *            otherwise on the Unix-domain socket named ADDRESS.
+     *            ARGS[0] must be the only argument.
+     *    --limit=N  In --serve mode, convert at most N requests at once
+     *            (by default, one per processor).
+     *    --metrics[=FILE]  Make the counters kept in Metrics available
+     *            through JMX (as they always are in --serve mode), and if
+     *            FILE is given, write them to it as JSON on exit.
+     *    --checkpoint=FILE  Convert the input file to the output file
+     *            (both must be given), which requires an alphabet of
+     *            single-byte characters, recording in FILE, periodically,
+     *            the point reached, from which a failed run may be
+     *            resumed.  FILE is removed when the run completes.
+     *    --interval=N  In --checkpoint mode, record a checkpoint after
+     *            each N megabytes of input (by default, 64).
+     *    --resume  In --checkpoint mode, continue from the checkpoint in
+     *            FILE, if there is one, keeping the output written up to
+     *            it, rather than starting afresh.
+     *    --range=FROM-TO  Instead of converting the whole input file
+     *            (which must be given), decrypt only characters FROM
+     *            through TO-1 (counting from 0, and not counting the
+     *            blanks between groups) of the message line following its
+     *            first settings line, reading only the part of the file
+     *            that holds them, and write them ungrouped.  The alphabet
+     *            must consist of single-byte characters. */
     public static void main(String... args) {
         try {
             new Main(args).process();
@@ -36,65 +125,201 @@ public final class Main {
 
     /** Check ARGS and open the necessary files (see comment on main). */
     Main(String[] args) {
+        args = readOptions(args);
         if (args.length < 1 || args.length > 3) {
             throw error("Only 1, 2, or 3 command-line arguments allowed");
         }
+        if (_options.containsKey("mmap") && args.length < 3) {
+            throw error("--mmap requires input and output files");
+        }
+        int modes = 0;
+        for (String mode : MODES) {
+            if (_options.containsKey(mode)) {
+                modes += 1;
+            }
+        }
+        if (modes > 1) {
+            throw error("only one of --mmap, --parallel, --split, "
+                        + "--search, --crib, --compile, --serve, "
+                        + "--checkpoint, and --range may be given");
+        }
+        if ((_options.containsKey("interval")
+             || _options.containsKey("resume"))
+            && !_options.containsKey("checkpoint")) {
+            throw error("--interval and --resume require --checkpoint");
+        }
+        if (_options.containsKey("checkpoint")
+            && (args.length < 3 || _options.get("checkpoint").isEmpty())) {
+            throw error("--checkpoint requires a checkpoint file and input "
+                        + "and output files");
+        }
+        if (_options.containsKey("range") && args.length < 2) {
+            throw error("--range requires an input file");
+        }
+        if (_options.containsKey("limit")
+            && !_options.containsKey("serve")) {
+            throw error("--limit requires --serve");
+        }
 
-        _config = getInput(args[0]);
+        _configChannel = openInput(args[0]);
+
+        if (_options.containsKey("compile")) {
+            if (args.length != 2) {
+                throw error("--compile requires a configuration file "
+                            + "and an output file");
+            }
+            _outChannel = openOutput(args[1], true);
+            return;
+        }
+
+        if (_options.containsKey("serve")) {
+            if (args.length != 1) {
+                throw error("--serve requires only a configuration file");
+            }
+            return;
+        }
 
         if (args.length > 1) {
-            _input = getInput(args[1]);
+            _inChannel = openInput(args[1]);
         } else {
-            _input = new Scanner(System.in);
+            _inChannel = new FileInputStream(FileDescriptor.in).getChannel();
         }
 
         if (args.length > 2) {
-            _output = getOutput(args[2]);
+            _outChannel = openOutput(args[2],
+                                     !_options.containsKey("resume"));
         } else {
-            _output = System.out;
+            _outChannel =
+                new FileOutputStream(FileDescriptor.out).getChannel();
         }
     }
 
-    /** Return a Scanner reading from the file named NAME. */
-    private Scanner getInput(String name) {
+    /** Record the leading options in ARGS in _options, returning the
+     *  remaining arguments. */
+    private String[] readOptions(String[] args) {
+        int k;
+        for (k = 0; k < args.length && args[k].startsWith("--"); k += 1) {
+            String name = args[k].substring(2);
+            String value = "";
+            int eq = name.indexOf('=');
+            if (eq >= 0) {
+                value = name.substring(eq + 1);
+                name = name.substring(0, eq);
+            }
+            if (!Arrays.asList(OPTIONS).contains(name)) {
+                throw error("unknown option: --%s", name);
+            }
+            _options.put(name, value);
+        }
+        return Arrays.copyOfRange(args, k, args.length);
+    }
+
+    /** Return a channel reading from the file named NAME. */
+    private FileChannel openInput(String name) {
         try {
-            return new Scanner(new File(name));
+            return FileChannel.open(Paths.get(name), StandardOpenOption.READ);
         } catch (IOException excp) {
             throw error("could not open %s", name);
         }
     }
 
-    /** Return a PrintStream writing to the file named NAME. */
-    private PrintStream getOutput(String name) {
+    /** Return a channel writing to the file named NAME, which is created
+     *  if necessary and truncated iff TRUNCATE.  The channel is also
+     *  readable, as needed for mapping. */
+    private FileChannel openOutput(String name, boolean truncate) {
         try {
-            return new PrintStream(new File(name));
+            if (!truncate) {
+                return FileChannel.open(Paths.get(name),
+                                        StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE,
+                                        StandardOpenOption.CREATE);
+            }
+            return FileChannel.open(Paths.get(name),
+                                    StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.TRUNCATE_EXISTING);
         } catch (IOException excp) {
             throw error("could not open %s", name);
         }
     }
 
+    /** Return a Reader decoding the contents of CHANNEL. */
+    private Reader getReader(ReadableByteChannel channel) {
+        return Channels.newReader(Metrics.countReads(channel),
+                                  Charset.defaultCharset()
+                                  .newDecoder()
+                                  .onMalformedInput(CodingErrorAction.REPLACE)
+                                  .onUnmappableCharacter(
+                                      CodingErrorAction.REPLACE),
+                                  LineProcessor.BUFFER_SIZE);
+    }
+
+    /** Return a buffered Writer encoding its output onto CHANNEL. */
+    private Writer getWriter(WritableByteChannel channel) {
+        return new BufferedWriter(
+            Channels.newWriter(Metrics.countWrites(channel),
+                               Charset.defaultCharset().newEncoder()
+                               .onUnmappableCharacter(
+                                   CodingErrorAction.REPLACE),
+                               LineProcessor.BUFFER_SIZE),
+            LineProcessor.BUFFER_SIZE);
+    }
+
     /** Configure an Enigma machine from the contents of configuration
      *  file _config and apply it to the messages in _input, sending the
-     *  results to _output. */
-    private void process() {
+     *  results to _output.  Input is read and converted a buffer at a
+     *  time, so that message lines of any length may be processed. */
+    void process() {
         try {
-            _m = readConfig();
-            setUp(_m, _input.nextLine());
-            if (!(_m.getSlots()[0] instanceof Reflector)) {
-                throw error("first rotor must be a reflector");
-            }
-            while (_input.hasNextLine() || _input.hasNext()) {
-                if (_input.hasNext("\\*")) {
-                    String store = _input.nextLine();
-                    while (store.trim().equals("")) {
-                        _output.println();
-                        store = _input.nextLine();
-                    }
-                    setUp(_m, store);
-                } else {
-                    _output.println(_m.convert(_input.nextLine()));
+            if (_options.containsKey("metrics")
+                || _options.containsKey("serve")) {
+                reportMetrics(_options.getOrDefault("metrics", ""));
+            }
+            _m = loadConfig();
+            if (_options.containsKey("compile")) {
+                CompiledConfig.write(_m, (FileChannel) _outChannel);
+                _outChannel.close();
+                return;
+            }
+            if (_options.containsKey("serve")) {
+                processServe(_options.get("serve"),
+                             threads(_options.get("limit")));
+                return;
+            }
+            if (_options.containsKey("range")) {
+                processRange((FileChannel) _inChannel,
+                             _options.get("range"));
+            } else if (_options.containsKey("crib")) {
+                processCrib(_options.get("crib"));
+            } else if (_options.containsKey("search")) {
+                processSearch(positive(_options.get("search"),
+                                       DEFAULT_SEARCH_RESULTS,
+                                       "number of results"));
+            } else if (_options.containsKey("parallel")) {
+                processParallel(threads(_options.get("parallel")));
+            } else if (_options.containsKey("checkpoint")) {
+                if (!singleByte(_alphabet)) {
+                    throw error("--checkpoint requires an alphabet of "
+                                + "single-byte characters");
                 }
+                int interval = positive(_options.getOrDefault("interval", ""),
+                                        DEFAULT_INTERVAL,
+                                        "checkpoint interval");
+                processCheckpointed((FileChannel) _inChannel,
+                                    (FileChannel) _outChannel,
+                                    Paths.get(_options.get("checkpoint")),
+                                    (long) interval << MEGABYTE_SHIFT);
+            } else if (_options.containsKey("mmap")
+                       && singleByte(_alphabet)) {
+                processMapped((FileChannel) _inChannel,
+                              (FileChannel) _outChannel);
+            } else {
+                processStream();
             }
+            _output.close();
+        } catch (IOException excp) {
+            throw error("I/O error: %s", excp.getMessage());
         } catch (ArrayIndexOutOfBoundsException
                 | NoSuchElementException
                 | NullPointerException excp) {
@@ -102,6 +327,411 @@ public final class Main {
         }
     }
 
+    /** Apply _m to the messages read from _inChannel, decoding them a
+     *  buffer at a time, and write the results to _outChannel.  When
+     *  characters are single bytes and the input need not be split, the
+     *  bytes are converted directly, as by processBytes. */
+    private void processStream() throws IOException {
+        if (!_options.containsKey("split") && singleByte(_alphabet)) {
+            processBytes();
+            return;
+        }
+        _input = getReader(_inChannel);
+        _output = getWriter(_outChannel);
+        _lines = new LineProcessor(_m, _output);
+        char[] buf = new char[LineProcessor.BUFFER_SIZE];
+        ExecutorService pool = null;
+        if (_options.containsKey("split")) {
+            int threads = threads(_options.get("split"));
+            pool = Executors.newFixedThreadPool(threads);
+            _lines.setSplitter(new SplitConverter(pool, threads));
+            buf = new char[SPLIT_BUFFER_SIZE];
+        }
+        try {
+            for (int n = _input.read(buf); n >= 0; n = _input.read(buf)) {
+                _lines.process(buf, 0, n);
+            }
+            _lines.finish();
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /** Apply _m to the messages read from _inChannel a buffer at a time,
+     *  writing the results to _outChannel through a buffer.  Characters
+     *  are single bytes and are never decoded. */
+    private void processBytes() throws IOException {
+        _output = new ByteChannelWriter(Metrics.countWrites(_outChannel),
+                                        LineProcessor.BUFFER_SIZE);
+        _lines = new LineProcessor(_m, _output);
+        ReadableByteChannel in = Metrics.countReads(_inChannel);
+        ByteBuffer buf = ByteBuffer.allocate(LineProcessor.BUFFER_SIZE);
+        while (in.read(buf) >= 0) {
+            buf.flip();
+            _lines.process(buf);
+            buf.clear();
+        }
+        _lines.finish();
+    }
+
+    /** Apply _m to the messages in the file open on IN, as for
+     *  processBytes, writing the results to the file open on OUT and
+     *  recording a checkpoint in FILE after each INTERVAL bytes of input.
+     *  With --resume, begins from the checkpoint in FILE, if it exists.
+     *  Each checkpoint is recorded only once the output it describes has
+     *  reached the disk, and FILE is removed at the end. */
+    private void processCheckpointed(FileChannel in, FileChannel out,
+                                     Path file, long interval)
+        throws IOException {
+        ByteChannelWriter writer =
+            new ByteChannelWriter(Metrics.countWrites(out),
+                                  LineProcessor.BUFFER_SIZE);
+        _output = writer;
+        _lines = new LineProcessor(_m, _output);
+        long pos = 0;
+        if (_options.containsKey("resume") && Files.exists(file)) {
+            Checkpoint cp = Checkpoint.read(file);
+            if (cp.input() > in.size() || cp.output() > out.size()) {
+                throw error("checkpoint %s does not match the files", file);
+            }
+            _lines.restore(cp);
+            pos = cp.input();
+            in.position(pos);
+            out.truncate(cp.output());
+            out.position(cp.output());
+        } else {
+            out.truncate(0);
+        }
+        ReadableByteChannel counted = Metrics.countReads(in);
+        ByteBuffer buf = ByteBuffer.allocate(LineProcessor.BUFFER_SIZE);
+        long next = pos + interval;
+        for (int n = counted.read(buf); n >= 0; n = counted.read(buf)) {
+            buf.flip();
+            _lines.process(buf);
+            buf.clear();
+            pos += n;
+            if (pos >= next) {
+                writer.flush();
+                out.force(false);
+                _lines.checkpoint(pos, out.position()).write(file);
+                next = pos + interval;
+            }
+        }
+        _lines.finish();
+        writer.flush();
+        Files.deleteIfExists(file);
+    }
+
+    /** Apply _m to the messages in the file open on IN, writing the
+     *  results to the file open on OUT, mapping both into memory a
+     *  window at a time.  Characters are single bytes and are never
+     *  decoded.  The output file is truncated to the output written
+     *  even if the input proves erroneous part way. */
+    private void processMapped(FileChannel in, FileChannel out)
+        throws IOException {
+        _output = new MappedWriter(out, MAP_SIZE);
+        try {
+            _lines = new LineProcessor(_m, _output);
+            long size = in.size();
+            Metrics.BYTES_READ.add(size);
+            for (long pos = 0; pos < size; pos += MAP_SIZE) {
+                _lines.process(in.map(FileChannel.MapMode.READ_ONLY, pos,
+                                      Math.min(MAP_SIZE, size - pos)));
+            }
+            _lines.finish();
+        } finally {
+            _output.close();
+        }
+    }
+
+    /** Register the metrics MBean and, if FILE is not empty, arrange for
+     *  the metrics to be written to FILE as JSON when the process
+     *  exits. */
+    private static void reportMetrics(String file) {
+        Metrics.register();
+        if (file.isEmpty()) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Files.writeString(Paths.get(file), Metrics.toJson());
+            } catch (IOException excp) {
+                System.err.printf("Error: could not write %s%n", file);
+            }
+        }));
+    }
+
+    /** Serve requests to convert messages with copies of _m, listening
+     *  at the address given by SPEC and converting at most LIMIT
+     *  requests at once, until the process is terminated, when the
+     *  server is shut down gracefully. */
+    private void processServe(String spec, int limit) throws IOException {
+        EnigmaServer server =
+            new EnigmaServer(_m, EnigmaServer.address(spec), limit);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException excp) {
+                /* Exiting anyway. */
+            }
+        }));
+        System.err.printf("listening on %s%n", server.address());
+        server.serve();
+    }
+
+    /** Apply copies of _m to the messages read from _inChannel using
+     *  THREADS threads, writing the results to _outChannel in their
+     *  original order.  The input is divided into blocks, each beginning
+     *  with a settings line (except perhaps the first), which are
+     *  independent of one another and are converted concurrently. */
+    private void processParallel(int threads) throws IOException {
+        _input = getReader(_inChannel);
+        _output = getWriter(_outChannel);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<String>> pending = new ArrayDeque<>();
+        try {
+            StringBuilder block = new StringBuilder();
+            char[] buf = new char[LineProcessor.BUFFER_SIZE];
+            int lineStart = 0;
+            boolean afterCR = false;
+            for (int n = _input.read(buf); n >= 0; n = _input.read(buf)) {
+                for (int i = 0; i < n; i += 1) {
+                    char c = buf[i];
+                    block.append(c);
+                    if (c == '\n' && afterCR) {
+                        lineStart = block.length();
+                    } else if (c == '\n' || c == '\r') {
+                        if (lineStart > 0 && LineProcessor.isSettings(
+                                block.subSequence(lineStart,
+                                                  block.length() - 1))) {
+                            pending.add(pool.submit(convertBlock(
+                                block.substring(0, lineStart), false)));
+                            block.delete(0, lineStart);
+                        }
+                        lineStart = block.length();
+                    }
+                    afterCR = c == '\r';
+                }
+                while (pending.size() > 2 * threads) {
+                    _output.write(result(pending.remove()));
+                }
+            }
+            pending.add(pool.submit(convertBlock(block.toString(), true)));
+            while (!pending.isEmpty()) {
+                _output.write(result(pending.remove()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Return a task that applies a fresh copy of _m to the input lines
+     *  in TEXT and returns the result.  LAST indicates that TEXT is the
+     *  end of the input. */
+    private Callable<String> convertBlock(String text, boolean last) {
+        return () -> {
+            StringWriter out = new StringWriter(text.length()
+                                                + text.length()
+                                                / Machine.GROUP_SIZE);
+            LineProcessor lines = new LineProcessor(_m.copy(), out);
+            char[] chars = text.toCharArray();
+            lines.process(chars, 0, chars.length);
+            if (last) {
+                lines.finish();
+            }
+            return out.toString();
+        };
+    }
+
+    /** Search for the keys under which the message lines read from
+     *  _inChannel decrypt best, writing settings lines for the best TOP
+     *  of them, with their scores, to _outChannel.  Progress is reported
+     *  on the standard error about once a second. */
+    private void processSearch(int top) throws IOException {
+        String text = readCiphertext();
+        ForkJoinPool pool = new ForkJoinPool();
+        ScheduledExecutorService reporter =
+            Executors.newSingleThreadScheduledExecutor();
+        KeySearch search = new KeySearch(_m, pool);
+        long start = System.nanoTime();
+        List<KeySearch.Candidate> best;
+        try {
+            reporter.scheduleAtFixedRate(() -> reportProgress(search, start),
+                                         1, 1, TimeUnit.SECONDS);
+            best = search.search(text, SEARCH_PREFIX, top);
+        } finally {
+            reporter.shutdownNow();
+            pool.shutdownNow();
+        }
+        reportProgress(search, start);
+        for (KeySearch.Candidate candidate : best) {
+            _output.write(String.format(Locale.ROOT, "%s %.5f%s",
+                                        candidate, candidate.score(),
+                                        LineProcessor.NEWLINE));
+        }
+    }
+
+    /** Find the keys under which the message lines read from _inChannel
+     *  decrypt to the crib given by SPEC, CRIB or CRIB@N, where N is the
+     *  number of ciphertext characters preceding it, writing settings
+     *  lines for them to _outChannel. */
+    private void processCrib(String spec) throws IOException {
+        int at = spec.lastIndexOf('@');
+        String crib = at < 0 ? spec : spec.substring(0, at);
+        int offset = 0;
+        if (at >= 0) {
+            try {
+                offset = Integer.parseInt(spec.substring(at + 1));
+            } catch (NumberFormatException excp) {
+                throw error("invalid crib offset: %s", spec);
+            }
+        }
+        Bombe bombe = new Bombe(_m, readCiphertext(), crib, offset);
+        ForkJoinPool pool = new ForkJoinPool();
+        List<Bombe.Stop> stops;
+        try {
+            stops = bombe.run(pool);
+        } finally {
+            pool.shutdownNow();
+        }
+        for (Bombe.Stop stop : stops) {
+            _output.write(stop + LineProcessor.NEWLINE);
+        }
+    }
+
+    /** Decrypt the characters of the first message in IN given by SPEC,
+     *  FROM-TO, as for --range, writing them to _outChannel. */
+    private void processRange(FileChannel in, String spec)
+        throws IOException {
+        int dash = spec.indexOf('-');
+        long from, to;
+        try {
+            from = Long.parseLong(spec.substring(0, Math.max(dash, 0)));
+            to = Long.parseLong(spec.substring(dash + 1));
+        } catch (NumberFormatException excp) {
+            throw error("invalid range: %s", spec);
+        }
+        if (!singleByte(_alphabet)) {
+            throw error("--range requires an alphabet of single-byte "
+                        + "characters");
+        }
+        String text = RangeDecryptor.open(_m, in).decrypt(from, to);
+        _output = getWriter(_outChannel);
+        _output.write(text + LineProcessor.NEWLINE);
+    }
+
+    /** Return the text of the message lines (those other than settings
+     *  lines) read from _inChannel, and open _output. */
+    private String readCiphertext() throws IOException {
+        _input = getReader(_inChannel);
+        _output = getWriter(_outChannel);
+        StringBuilder text = new StringBuilder();
+        BufferedReader lines = new BufferedReader(_input);
+        for (String line = lines.readLine(); line != null;
+             line = lines.readLine()) {
+            if (!LineProcessor.isSettings(line)) {
+                text.append(line);
+            }
+        }
+        return text.toString();
+    }
+
+    /** Report on the standard error how much of SEARCH, begun at time
+     *  START (from System.nanoTime), is complete. */
+    private static void reportProgress(KeySearch search, long start) {
+        long tested = search.tested();
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.err.printf(Locale.ROOT,
+                          "searched %d of %d keys (%.0f keys/s)%n",
+                          tested, search.total(), tested / secs);
+    }
+
+    /** Return the value computed by TASK, waiting if necessary. */
+    private static String result(Future<String> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException excp) {
+            throw error("interrupted");
+        } catch (ExecutionException excp) {
+            Throwable cause = excp.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw error("%s", cause);
+        }
+    }
+
+    /** Return the number of threads requested by the option value
+     *  VALUE, defaulting to the number of available processors. */
+    private static int threads(String value) {
+        return positive(value, Runtime.getRuntime().availableProcessors(),
+                        "thread count");
+    }
+
+    /** Return the positive integer given by the option value VALUE,
+     *  defaulting to DEFAULTVALUE.  WHAT describes the value for error
+     *  messages. */
+    private static int positive(String value, int defaultValue,
+                                String what) {
+        if (value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int n = Integer.parseInt(value);
+            if (n > 0) {
+                return n;
+            }
+        } catch (NumberFormatException excp) {
+            /* Fall through. */
+        }
+        throw error("invalid %s: %s", what, value);
+    }
+
+    /** Return true iff every character of ALPHABET is encoded as the
+     *  same single byte in the default charset. */
+    private static boolean singleByte(Alphabet alphabet) {
+        Charset charset = Charset.defaultCharset();
+        if (!charset.equals(StandardCharsets.UTF_8)
+            && !charset.equals(StandardCharsets.US_ASCII)
+            && !charset.equals(StandardCharsets.ISO_8859_1)) {
+            return false;
+        }
+        for (int i = 0; i < alphabet.size(); i += 1) {
+            if (alphabet.toChar(i) >= ASCII_LIMIT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Return an Enigma machine configured from the configuration file
+     *  open on _configChannel, which may be in text or compiled form.
+     *  Its rotors' conversions are tabulated if the alphabet is small
+     *  enough. */
+    private Machine loadConfig() throws IOException {
+        long start = System.nanoTime();
+        Machine m;
+        if (CompiledConfig.isCompiled(_configChannel)) {
+            m = CompiledConfig.read(_configChannel);
+            _alphabet = m.alphabet();
+        } else {
+            _config = new Scanner(_configChannel,
+                                  Charset.defaultCharset().name());
+            m = readConfig();
+        }
+        if (_alphabet.size() <= MAX_TABULATED_SIZE) {
+            for (Rotor rotor : m.allRotors()) {
+                rotor.tabulate();
+            }
+        }
+        Metrics.CONFIG_NANOS.add(System.nanoTime() - start);
+        return m;
+    }
+
     /** Return an Enigma machine configured from the contents of configuration
      *  file _config. */
     private Machine readConfig() {
@@ -154,50 +784,9 @@ public final class Main {
         }
     }
 
-    /** Set M according to the specification given on SETTINGS,
-     *  which must have the format specified in the assignment. */
-    private void setUp(Machine M, String settings) {
-        try {
-            if (!settings.startsWith("*")) {
-                throw error("no rotors in machine");
-            }
-            int plugIndex = settings.indexOf("(");
-            if (plugIndex >= 0) {
-                String plug = settings.substring(plugIndex);
-                M.setPlugboard(new Permutation(plug, _alphabet));
-                settings = settings.trim().substring(1, plugIndex).trim();
-            } else {
-                M.setPlugboard(new Permutation("", _alphabet));
-                settings = settings.trim().substring(1).trim();
-            }
-            String[] rotlist;
-            String four = settings.substring(
-                    settings.lastIndexOf(" ") + 1, settings.length());
-            if (four.length() != M.numRotors() - 1) {
-                throw error("Settings is an incorrectly sized string!");
-            }
-            rotlist = settings.substring(
-                    0, settings.lastIndexOf(" ")).trim().split(" ");
-            if (rotlist.length != M.numRotors()) {
-                throw error("Wrong number of arguments");
-            }
-            M.insertRotors(rotlist);
-            int k = 0;
-            for (Rotor each : M.getSlots()) {
-                if (each instanceof MovingRotor) {
-                    k++;
-                }
-            }
-            if (k != M.numPawls()) {
-                throw error("Too many MovingRotors for number of pawls!");
-            }
-            M.setRotors(four);
-        } catch (StringIndexOutOfBoundsException
-                | NoSuchElementException
-                | NullPointerException excp) {
-            throw error("Invalid Configuration, Settings, or Input.");
-        }
-    }
+    /** Largest alphabet size for which rotor conversions are
+     *  precomputed into tables. */
+    static final int MAX_TABULATED_SIZE = 256;
 
     /** This machine. */
     private Machine _m;
@@ -205,12 +794,65 @@ public final class Main {
     /** Alphabet used in this machine. */
     private Alphabet _alphabet;
 
+    /** Names of the recognized command-line options. */
+    private static final String[] OPTIONS = {
+        "mmap", "parallel", "split", "search", "crib", "compile", "serve",
+        "limit", "metrics", "checkpoint", "interval", "resume", "range"
+    };
+
+    /** Names of the mutually exclusive processing-mode options. */
+    private static final String[] MODES = {
+        "mmap", "parallel", "split", "search", "crib", "compile", "serve",
+        "checkpoint", "range"
+    };
+
+    /** Number of keys reported in --search mode by default. */
+    static final int DEFAULT_SEARCH_RESULTS = 10;
+
+    /** Number of ciphertext characters decrypted with each key in
+     *  --search mode. */
+    static final int SEARCH_PREFIX = 250;
+
+    /** Megabytes of input between checkpoints in --checkpoint mode by
+     *  default. */
+    static final int DEFAULT_INTERVAL = 64;
+
+    /** Shift converting megabytes to bytes. */
+    private static final int MEGABYTE_SHIFT = 20;
+
+    /** Size in characters of the input buffer in --split mode. */
+    static final int SPLIT_BUFFER_SIZE = 1 << 22;
+
+    /** Size in bytes of each memory-mapped window in --mmap mode. */
+    static final int MAP_SIZE = 1 << 28;
+
+    /** Characters below this are encoded as single bytes by all the
+     *  charsets supported in --mmap mode. */
+    private static final char ASCII_LIMIT = 0x80;
+
+    /** Values of the command-line options given, indexed by name.
+     *  Options given without values have the value "". */
+    private HashMap<String, String> _options = new HashMap<>();
+
+    /** Channel from which input messages are read. */
+    private ReadableByteChannel _inChannel;
+
+    /** Channel to which processed messages are written. */
+    private WritableByteChannel _outChannel;
+
+    /** Processor applying _m to the input, except in --parallel
+     *  mode. */
+    private LineProcessor _lines;
+
     /** Source of input messages. */
-    private Scanner _input;
+    private Reader _input;
+
+    /** Channel from which the machine configuration is read. */
+    private FileChannel _configChannel;
 
-    /** Source of machine configuration. */
+    /** Source of machine configuration, when given as text. */
     private Scanner _config;
 
     /** File for encoded/decoded messages. */
-    private PrintStream _output;
+    private Writer _output;
 }
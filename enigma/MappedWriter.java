@@ -0,0 +1,71 @@
+package enigma;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** A ByteWriter of single-byte characters that writes directly into
+ *  successive memory-mapped windows of a file.  The file is extended a
+ *  window at a time as needed, and truncated to the number of bytes
+ *  actually written when the writer is closed.
+ *  @author Peter Sorensen
+ */
+class MappedWriter extends ByteWriter {
+
+    /** A writer onto CHANNEL, starting at its beginning and mapping
+     *  WINDOW bytes at a time.  CHANNEL must be open for reading and
+     *  writing. */
+    MappedWriter(FileChannel channel, int window) {
+        _channel = channel;
+        _window = window;
+    }
+
+    @Override
+    ByteBuffer reserve(int n) throws IOException {
+        if (_buf == null || _buf.remaining() < n) {
+            if (_buf != null) {
+                _base += _buf.position();
+            }
+            _buf = _channel.map(FileChannel.MapMode.READ_WRITE, _base,
+                                Math.max(_window, n));
+        }
+        return _buf;
+    }
+
+    /** Return the number of bytes written so far. */
+    long written() {
+        return _buf == null ? _base : _base + _buf.position();
+    }
+
+    /** Does nothing: mapped pages are written back by the operating
+     *  system. */
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (_channel.isOpen()) {
+            long size = written();
+            Metrics.BYTES_WRITTEN.add(size);
+            _buf = null;
+            _channel.truncate(size);
+            _channel.close();
+        }
+    }
+
+    /** Channel for the output file. */
+    private final FileChannel _channel;
+
+    /** Minimum size of each mapped window. */
+    private final int _window;
+
+    /** File position of the start of the current window. */
+    private long _base;
+
+    /** The current window, or null if none has been mapped. */
+    private MappedByteBuffer _buf;
+
+}
@@ -0,0 +1,301 @@
+package enigma;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import static enigma.EnigmaException.*;
+
+/** Process-wide counters and latency histograms describing the work done
+ *  by the simulator.  Counters are LongAdders, which are striped across
+ *  threads, so that threads converting at once in the multi-threaded
+ *  modes do not contend for them, and are updated once per buffer or
+ *  message rather than once per character.  Their values may be read
+ *  through JMX, once register() has been called, as the attributes of
+ *  the MBean named OBJECT_NAME, or as a JSON object from toJson().
+ *  @author Peter Sorensen
+ */
+class Metrics implements DynamicMBean {
+
+    /** A histogram of non-negative values, counted in buckets whose
+     *  bounds are successive powers of two. */
+    static class Histogram {
+
+        /** An empty histogram. */
+        Histogram() {
+            for (int b = 0; b < BUCKETS; b += 1) {
+                _buckets[b] = new LongAdder();
+            }
+        }
+
+        /** Record VALUE. */
+        void record(long value) {
+            int bucket = Long.SIZE - Long.numberOfLeadingZeros(value);
+            _buckets[Math.min(bucket, BUCKETS - 1)].increment();
+            _sum.add(value);
+        }
+
+        /** Return the number of values recorded. */
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : _buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /** Return the mean of the values recorded, or 0 if there are
+         *  none. */
+        long mean() {
+            long count = count();
+            return count == 0 ? 0 : _sum.sum() / count;
+        }
+
+        /** Return an upper bound on the FRACTION quantile of the values
+         *  recorded (the bound of its bucket), or 0 if there are none. */
+        long quantile(double fraction) {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int b = 0; b < BUCKETS; b += 1) {
+                counts[b] = _buckets[b].sum();
+                count += counts[b];
+            }
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b += 1) {
+                seen += counts[b];
+                if (seen > 0 && seen >= fraction * count) {
+                    return bound(b);
+                }
+            }
+            return 0;
+        }
+
+        /** Return the largest value counted in bucket B. */
+        static long bound(int b) {
+            return b >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << b) - 1;
+        }
+
+        /** Return the number of values recorded in bucket B. */
+        long bucket(int b) {
+            return _buckets[b].sum();
+        }
+
+        /** Number of buckets.  Bucket B > 0 counts values in
+         *  [2**(B-1), 2**B); bucket 0 counts zeros. */
+        static final int BUCKETS = Long.SIZE;
+
+        /** The counts in each bucket. */
+        private final LongAdder[] _buckets = new LongAdder[BUCKETS];
+
+        /** The sum of the values recorded. */
+        private final LongAdder _sum = new LongAdder();
+    }
+
+    /** Register an instance of me with the platform MBean server under
+     *  OBJECT_NAME, if none is registered yet. */
+    static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(new Metrics(), new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException excp) {
+            /* Already registered. */
+        } catch (JMException excp) {
+            throw error("could not register metrics: %s", excp.getMessage());
+        }
+    }
+
+    /** Return the current values of the counters, indexed by name. */
+    static Map<String, Long> values() {
+        LinkedHashMap<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, LongSupplier> entry : ATTRIBUTES.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        return result;
+    }
+
+    /** Return the current values of the counters as a JSON object,
+     *  including the nonempty buckets of the message latency histogram,
+     *  each labelled with its upper bound. */
+    static String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Long> entry : values().entrySet()) {
+            json.append(String.format("%n  \"%s\": %d,", entry.getKey(),
+                                      entry.getValue()));
+        }
+        json.append(String.format("%n  \"MessageNanosHistogram\": {"));
+        String sep = "";
+        for (int b = 0; b < Histogram.BUCKETS; b += 1) {
+            long count = MESSAGE_NANOS.bucket(b);
+            if (count > 0) {
+                json.append(String.format("%s%n    \"%d\": %d", sep,
+                                          Histogram.bound(b), count));
+                sep = ",";
+            }
+        }
+        return json.append(String.format("%n  }%n}%n")).toString();
+    }
+
+    /** Return a channel that reads from CHANNEL, adding the number of
+     *  bytes read to BYTES_READ. */
+    static ReadableByteChannel countReads(ReadableByteChannel channel) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int n = channel.read(dst);
+                if (n > 0) {
+                    BYTES_READ.add(n);
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /** Return a channel that writes to CHANNEL, adding the number of
+     *  bytes written to BYTES_WRITTEN. */
+    static WritableByteChannel countWrites(WritableByteChannel channel) {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                int n = channel.write(src);
+                BYTES_WRITTEN.add(n);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    @Override
+    public Object getAttribute(String name)
+        throws AttributeNotFoundException {
+        LongSupplier value = ATTRIBUTES.get(name);
+        if (value == null) {
+            throw new AttributeNotFoundException(name);
+        }
+        return value.getAsLong();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        AttributeList result = new AttributeList();
+        for (String name : names) {
+            LongSupplier value = ATTRIBUTES.get(name);
+            if (value != null) {
+                result.add(new Attribute(name, value.getAsLong()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute)
+        throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String action, Object[] params, String[] sig)
+        throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        MBeanAttributeInfo[] attrs =
+            new MBeanAttributeInfo[ATTRIBUTES.size()];
+        int i = 0;
+        for (String name : ATTRIBUTES.keySet()) {
+            attrs[i] = new MBeanAttributeInfo(name, "long", name, true,
+                                              false, false);
+            i += 1;
+        }
+        return new MBeanInfo(Metrics.class.getName(),
+                             "Enigma simulator metrics", attrs, null, null,
+                             null);
+    }
+
+    /** Number of characters converted by Machine. */
+    static final LongAdder CHARS_CONVERTED = new LongAdder();
+
+    /** Number of message lines converted. */
+    static final LongAdder MESSAGES = new LongAdder();
+
+    /** Number of times a machine has been set up from a settings line. */
+    static final LongAdder SETUPS = new LongAdder();
+
+    /** Number of bytes of input read. */
+    static final LongAdder BYTES_READ = new LongAdder();
+
+    /** Number of bytes of output written. */
+    static final LongAdder BYTES_WRITTEN = new LongAdder();
+
+    /** Time spent loading configurations, in nanoseconds. */
+    static final LongAdder CONFIG_NANOS = new LongAdder();
+
+    /** Time spent converting each message line, in nanoseconds, not
+     *  counting time spent waiting for its input or writing its
+     *  output. */
+    static final Histogram MESSAGE_NANOS = new Histogram();
+
+    /** Name under which register() registers the MBean. */
+    static final String OBJECT_NAME = "enigma:type=Metrics";
+
+    /** Sources of the values of the MBean's attributes, indexed by
+     *  attribute name, in the order they are reported. */
+    private static final Map<String, LongSupplier> ATTRIBUTES =
+        new LinkedHashMap<>();
+
+    static {
+        ATTRIBUTES.put("CharsConverted", CHARS_CONVERTED::sum);
+        ATTRIBUTES.put("Messages", MESSAGES::sum);
+        ATTRIBUTES.put("Setups", SETUPS::sum);
+        ATTRIBUTES.put("BytesRead", BYTES_READ::sum);
+        ATTRIBUTES.put("BytesWritten", BYTES_WRITTEN::sum);
+        ATTRIBUTES.put("ConfigNanos", CONFIG_NANOS::sum);
+        ATTRIBUTES.put("MessageNanosMean", MESSAGE_NANOS::mean);
+        ATTRIBUTES.put("MessageNanosP50", () -> MESSAGE_NANOS.quantile(.5));
+        ATTRIBUTES.put("MessageNanosP99", () -> MESSAGE_NANOS.quantile(.99));
+    }
+
+}
@@ -1,5 +1,7 @@
 package enigma;
 
+import java.util.BitSet;
+
 import static enigma.EnigmaException.*;
 
 /** Class that represents a rotating rotor in the enigma machine.
@@ -14,7 +16,12 @@ class MovingRotor extends Rotor {
      */
     MovingRotor(String name, Permutation perm, String notches) {
         super(name, perm);
-        _notches = notches;
+        _notches = new BitSet(size());
+        for (int i = 0; i < notches.length(); i++) {
+            if (alphabet().contains(notches.charAt(i))) {
+                _notches.set(alphabet().toInt(notches.charAt(i)));
+            }
+        }
     }
 
     @Override
@@ -24,7 +31,13 @@ class MovingRotor extends Rotor {
 
     @Override
     boolean atNotch() {
-        return _notches.indexOf(alphabet().toChar(setting())) >= 0;
+        return _notches.get(setting());
+    }
+
+    /** Return the set of my notch positions.  The result must not be
+     *  modified. */
+    BitSet notches() {
+        return _notches;
     }
 
     @Override
@@ -32,7 +45,7 @@ class MovingRotor extends Rotor {
         set((setting() + 1) % alphabet().size());
     }
 
-    /** This rotor's notches. */
-    private String _notches;
+    /** The positions of this rotor's notches. */
+    private final BitSet _notches;
 
 }
@@ -68,6 +68,19 @@ public class MovingRotorTest {
         assertEquals(ror.convertBackward(0), 25);
     }
 
+    @Test
+    public void testTabulatedConverts() {
+        setRotor("I", NAVALA, "");
+        rotor.tabulate();
+        assertTrue(rotor.tabulated());
+        checkRotor("Rotor I tabulated (A)", UPPER_STRING, NAVALA_MAP.get("I"));
+        rotor.advance();
+        checkRotor("Rotor I tabulated advanced", UPPER_STRING,
+                   NAVALB_MAP.get("I"));
+        rotor.set(25);
+        checkRotor("Rotor I tabulated set", UPPER_STRING, NAVALZ_MAP.get("I"));
+    }
+
     @Test
     public void checkRotorAtA() {
         setRotor("I", NAVALA, "");
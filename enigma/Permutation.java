@@ -1,5 +1,7 @@
 package enigma;
 
+import java.util.Arrays;
+
 import static enigma.EnigmaException.*;
 
 /** Represents a permutation of a range of integers starting at 0 corresponding
@@ -15,59 +17,94 @@ class Permutation {
     Permutation(String cycles, Alphabet alphabet) {
         _alphabet = alphabet;
         _cycles = cycles;
-        _cyclesList = cycles.replaceAll("[ (]", "").split("\\)");
+        _size = alphabet.size();
+        _forward = new int[_size];
+        _inverse = new int[_size];
+        for (int i = 0; i < _size; i++) {
+            _forward[i] = i;
+            _inverse[i] = i;
+        }
+        for (String cycle : cycles.replaceAll("[\\s(]", "").split("\\)")) {
+            compileCycle(cycle);
+        }
+    }
+
+    /** Set this Permutation to the one mapping each index I of ALPHABET
+     *  to FORWARD[I], which must contain each index exactly once. */
+    Permutation(int[] forward, Alphabet alphabet) {
+        _alphabet = alphabet;
+        _size = alphabet.size();
+        if (forward.length != _size) {
+            throw error("permutation table has wrong size");
+        }
+        _forward = forward.clone();
+        _inverse = new int[_size];
+        Arrays.fill(_inverse, -1);
+        StringBuilder cycles = new StringBuilder();
+        for (int i = 0; i < _size; i++) {
+            if (_forward[i] < 0 || _forward[i] >= _size
+                || _inverse[_forward[i]] >= 0) {
+                throw error("permutation table is not a permutation");
+            }
+            _inverse[_forward[i]] = i;
+        }
+        boolean[] seen = new boolean[_size];
+        for (int i = 0; i < _size; i++) {
+            if (!seen[i] && _forward[i] != i) {
+                cycles.append(" (");
+                for (int j = i; !seen[j]; j = _forward[j]) {
+                    seen[j] = true;
+                    cycles.append(alphabet.toChar(j));
+                }
+                cycles.append(")");
+            }
+        }
+        _cycles = cycles.toString().trim();
     }
 
     /** Add the cycle c0->c1->...->cm->c0 to the permutation, where CYCLE is
      *  c0c1...cm. */
     void addCycle(String cycle) {
         _cycles += " (" + cycle + ")";
+        compileCycle(cycle);
+    }
+
+    /** Record the cycle c0->c1->...->cm->c0 given by CYCLE (c0c1...cm,
+     *  with no parentheses or blanks) in my forward and inverse tables. */
+    private void compileCycle(String cycle) {
+        int n = cycle.length();
+        for (int i = 0; i < n; i++) {
+            int from = _alphabet.toInt(cycle.charAt(i));
+            int to = _alphabet.toInt(cycle.charAt((i + 1) % n));
+            _forward[from] = to;
+            _inverse[to] = from;
+        }
     }
 
     /** Return the value of P modulo the size of this permutation. */
     final int wrap(int p) {
-        int r = p % size();
+        int r = p % _size;
         if (r < 0) {
-            r += size();
+            r += _size;
         }
         return r;
     }
 
     /** Returns the size of the alphabet I permute. */
     int size() {
-        return _alphabet.size();
+        return _size;
     }
 
     /** Return the result of applying this permutation to P modulo the
      *  alphabet size. */
     int permute(int p) {
-        char in = _alphabet.toChar(wrap(p));
-        for (String temp : _cyclesList) {
-            if (temp.indexOf(in) >= 0) {
-                int index = temp.indexOf(in);
-                if (index == temp.length() - 1) {
-                    return _alphabet.toInt(temp.charAt(0));
-                }
-                return _alphabet.toInt(temp.charAt(index + 1));
-            }
-        }
-        return wrap(p);
+        return _forward[wrap(p)];
     }
 
     /** Return the result of applying the inverse of this permutation
      *  to  C modulo the alphabet size. */
     int invert(int c) {
-        char in = _alphabet.toChar(wrap(c));
-        for (String temp : _cyclesList) {
-            if (temp.indexOf(in) >= 0) {
-                int index = temp.indexOf(in);
-                if (index == 0) {
-                    return _alphabet.toInt(temp.charAt(temp.length() - 1));
-                }
-                return _alphabet.toInt(temp.charAt(index - 1));
-            }
-        }
-        return wrap(c);
+        return _inverse[wrap(c)];
     }
 
     /** Return the result of applying this permutation to the index of P
@@ -89,14 +126,12 @@ class Permutation {
     /** Return true iff this permutation is a derangement (i.e., a
      *  permutation for which no value maps to itself). */
     boolean derangement() {
-        int cycleSize = 0;
-        for (String temp : _cyclesList) {
-            cycleSize += temp.length();
-        }
-        if (cycleSize == size()) {
-            return true;
+        for (int i = 0; i < _size; i++) {
+            if (_forward[i] == i) {
+                return false;
+            }
         }
-        return false;
+        return true;
     }
 
     /** Returns the the String _cycles of this permutation. */
@@ -112,7 +147,13 @@ class Permutation {
      *  to themselves. */
     private String _cycles;
 
-    /** A list of split _cycles with no blanks and no parentheses. */
-    private String[] _cyclesList;
+    /** The size of my alphabet. */
+    private final int _size;
+
+    /** Maps each index to its image under this permutation. */
+    private final int[] _forward;
+
+    /** Maps each index to its image under the inverse permutation. */
+    private final int[] _inverse;
 }
 
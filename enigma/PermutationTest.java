@@ -60,6 +60,16 @@ public class PermutationTest {
         assertEquals(perm.getCycles(), "(ABC) (DEF) (GH) (ZYX)");
     }
 
+    @Test
+    public void testaddCyclePermute() {
+        perm = new Permutation("(ABC)", UPPER);
+        perm.addCycle("ZYX");
+        assertEquals(perm.permute(25), 24);
+        assertEquals(perm.permute(23), 25);
+        assertEquals(perm.invert(25), 23);
+        assertEquals(perm.invert(0), 2);
+    }
+
     @Test
     public void testcharPermute() {
         perm = new Permutation("(ABCZ)", UPPER);
@@ -83,6 +93,19 @@ public class PermutationTest {
         assertEquals(perm1.derangement(), true);
     }
 
+    @Test
+    public void testTablePermutation() {
+        Permutation cycles = new Permutation("(ABCZ) (DE)", UPPER);
+        int[] table = new int[26];
+        for (int i = 0; i < 26; i += 1) {
+            table[i] = cycles.permute(i);
+        }
+        perm = new Permutation(table, UPPER);
+        assertEquals("(ABCZ) (DE)", perm.getCycles());
+        assertEquals('A', perm.permute('Z'));
+        assertEquals('C', perm.invert('Z'));
+    }
+
     @Test
     public void checkIdTransform() {
         perm = new Permutation("", UPPER);
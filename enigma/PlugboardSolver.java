@@ -0,0 +1,491 @@
+package enigma;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static enigma.EnigmaException.*;
+
+/** Recovers the plugboard of an Enigma machine whose rotors and their
+ *  settings are known, given only a ciphertext.  Starting from a random
+ *  plugboard, single changes (connecting two characters, after
+ *  disconnecting them from their partners, or disconnecting a pair) are
+ *  tried, and accepted if they improve the score of the decryption
+ *  (or, when annealing, with a probability that shrinks as the search
+ *  proceeds).  Only the characters of the decryption that a change can
+ *  affect are recomputed and rescored.  Independent restarts run
+ *  concurrently, and the best result is kept.
+ *  @author Peter Sorensen
+ */
+class PlugboardSolver {
+
+    /** A solver for CIPHERTEXT, encrypted by a machine whose slots and
+     *  rotor settings are those of M at the start of the message.  M's
+     *  plugboard is ignored, and M is not changed.  Characters of
+     *  CIPHERTEXT not in the alphabet (such as blanks) are ignored. */
+    PlugboardSolver(Machine m, String ciphertext) {
+        _alphabet = m.alphabet();
+        _size = _alphabet.size();
+        int[] cipher = new int[ciphertext.length()];
+        int n = 0;
+        for (int i = 0; i < ciphertext.length(); i += 1) {
+            char c = Character.toUpperCase(ciphertext.charAt(i));
+            if (_alphabet.contains(c)) {
+                cipher[n++] = _alphabet.toInt(c);
+            }
+        }
+        if (n < 2) {
+            throw error("ciphertext too short to solve");
+        }
+        _cipher = Arrays.copyOf(cipher, n);
+
+        MachineSpec spec = new MachineSpec(m);
+        int[] posns = new int[m.numRotors()];
+        for (int i = 1; i < posns.length; i += 1) {
+            posns[i] = m.getSlots()[i].setting();
+        }
+        Permutation identity = new Permutation("", _alphabet);
+        _scrambler = new char[n * _size];
+        for (int k = 0; k < n; k += 1) {
+            spec.step(posns);
+            for (int c = 0; c < _size; c += 1) {
+                _scrambler[k * _size + c] =
+                    (char) spec.convert(posns, identity, c);
+            }
+        }
+
+        int[] counts = new int[_size];
+        for (int c : _cipher) {
+            counts[c] += 1;
+        }
+        _byCipher = new int[_size][];
+        for (int c = 0; c < _size; c += 1) {
+            _byCipher[c] = new int[counts[c]];
+            counts[c] = 0;
+        }
+        for (int k = 0; k < n; k += 1) {
+            _byCipher[_cipher[k]][counts[_cipher[k]]++] = k;
+        }
+    }
+
+    /** Set the largest number of plug pairs in a solution to PAIRS.  By
+     *  default, every character may be plugged. */
+    void setMaxPairs(int pairs) {
+        _maxPairs = pairs;
+    }
+
+    /** Set the initial annealing temperature to TEMPERATURE, in units of
+     *  score.  It falls linearly to 0 over each restart.  The default,
+     *  0, gives pure hill climbing. */
+    void setTemperature(double temperature) {
+        _temperature = temperature;
+    }
+
+    /** Return the best solution found by RESTARTS independent climbs
+     *  scored by SCORER, each trying at most ITERATIONS changes and all
+     *  stopping after MILLIS milliseconds (if MILLIS > 0).  The climbs
+     *  run on POOL, and restart K uses random seed SEED + K. */
+    Solution solve(Scorer scorer, int restarts, long iterations,
+                   long millis, long seed, ExecutorService pool) {
+        long deadline = millis > 0
+            ? System.nanoTime() + millis * 1_000_000L : Long.MAX_VALUE;
+        List<Callable<Solution>> tasks = new ArrayList<>();
+        for (int k = 0; k < restarts; k += 1) {
+            long restartSeed = seed + k;
+            tasks.add(() -> new Climber(scorer, new SplittableRandom(
+                          restartSeed)).climb(iterations, deadline));
+        }
+        Solution best = null;
+        try {
+            for (Future<Solution> result : pool.invokeAll(tasks)) {
+                Solution solution = result.get();
+                if (best == null || solution.score() > best.score()) {
+                    best = solution;
+                }
+            }
+        } catch (InterruptedException excp) {
+            throw error("interrupted");
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw error("%s", excp.getCause());
+        }
+        if (best == null) {
+            throw error("no restarts");
+        }
+        return best;
+    }
+
+    /** A measure of how much a decryption looks like plaintext. */
+    static final class Scorer {
+
+        /** A scorer adding BIGRAMS[A * size + B] for each adjacent pair of
+         *  characters A, B, or, if BIGRAMS is null, scoring the number of
+         *  pairs of equal characters (proportional to the index of
+         *  coincidence). */
+        private Scorer(double[] bigrams) {
+            _bigrams = bigrams;
+        }
+
+        /** Return a scorer preferring decryptions with high index of
+         *  coincidence. */
+        static Scorer indexOfCoincidence() {
+            return new Scorer(null);
+        }
+
+        /** Return a scorer summing the log-frequencies of the adjacent
+         *  pairs of characters of ALPHABET in a decryption, as measured
+         *  in SAMPLE, a text in the expected language. */
+        static Scorer bigrams(Alphabet alphabet, String sample) {
+            int size = alphabet.size();
+            double[] counts = new double[size * size];
+            Arrays.fill(counts, 1);
+            int prev = -1;
+            for (int i = 0; i < sample.length(); i += 1) {
+                char c = Character.toUpperCase(sample.charAt(i));
+                if (alphabet.contains(c)) {
+                    int k = alphabet.toInt(c);
+                    if (prev >= 0) {
+                        counts[prev * size + k] += 1;
+                    }
+                    prev = k;
+                }
+            }
+            double total = 0;
+            for (double count : counts) {
+                total += count;
+            }
+            for (int i = 0; i < counts.length; i += 1) {
+                counts[i] = Math.log(counts[i] / total);
+            }
+            return new Scorer(counts);
+        }
+
+        /** Log-frequencies of pairs, or null. */
+        private final double[] _bigrams;
+    }
+
+    /** A plugboard and the score of the decryption it gives. */
+    static final class Solution {
+
+        /** A solution with plugboard PLUGBOARD, in cycle notation, and
+         *  score SCORE. */
+        Solution(String plugboard, double score) {
+            _plugboard = plugboard;
+            _score = score;
+        }
+
+        /** Return my plugboard, in cycle notation. */
+        String plugboard() {
+            return _plugboard;
+        }
+
+        /** Return my score. */
+        double score() {
+            return _score;
+        }
+
+        @Override
+        public String toString() {
+            return _plugboard;
+        }
+
+        /** The plugboard. */
+        private final String _plugboard;
+        /** Its score. */
+        private final double _score;
+    }
+
+    /** A single hill climb. */
+    private final class Climber {
+
+        /** A climb scored by SCORER using RANDOM. */
+        Climber(Scorer scorer, SplittableRandom random) {
+            _bigrams = scorer._bigrams;
+            _random = random;
+            int n = _cipher.length;
+            _plug = new int[_size];
+            _mid = new int[n];
+            _plain = new int[n];
+            _counts = new int[_size];
+            _stamp = new int[n];
+            _affected = new int[n];
+            _newPlain = new int[n];
+            _byMid = new int[_size][];
+            _midCounts = new int[_size];
+            _trial = new int[_size];
+            for (int c = 0; c < _size; c += 1) {
+                _plug[c] = c;
+            }
+            int[] order = new int[_size];
+            for (int c = 0; c < _size; c += 1) {
+                order[c] = c;
+            }
+            for (int c = _size - 1; c > 0; c -= 1) {
+                int j = random.nextInt(c + 1), t = order[c];
+                order[c] = order[j];
+                order[j] = t;
+            }
+            int pairs = random.nextInt(Math.min(_maxPairs, _size / 2) + 1);
+            for (int i = 0; i < pairs; i += 1) {
+                _plug[order[2 * i]] = order[2 * i + 1];
+                _plug[order[2 * i + 1]] = order[2 * i];
+                _pairs += 1;
+            }
+            for (int k = 0; k < n; k += 1) {
+                _mid[k] = _scrambler[k * _size + _plug[_cipher[k]]];
+                _plain[k] = _plug[_mid[k]];
+                _counts[_plain[k]] += 1;
+            }
+            indexMids();
+            _score = fullScore();
+        }
+
+        /** Try up to ITERATIONS changes, stopping at time DEADLINE (from
+         *  System.nanoTime), and return the best plugboard found. */
+        Solution climb(long iterations, long deadline) {
+            int[] best = _plug.clone();
+            double bestScore = _score;
+            for (long t = 0; t < iterations; t += 1) {
+                if ((t & CLOCK_MASK) == 0 && System.nanoTime() >= deadline) {
+                    break;
+                }
+                int a = _random.nextInt(_size), b = _random.nextInt(_size);
+                if (a == b) {
+                    continue;
+                }
+                System.arraycopy(_plug, 0, _trial, 0, _size);
+                int pairs = _pairs;
+                if (_trial[a] == b) {
+                    _trial[a] = a;
+                    _trial[b] = b;
+                    pairs -= 1;
+                } else {
+                    pairs += 1;
+                    for (int c : new int[] { a, b }) {
+                        if (_trial[c] != c) {
+                            _trial[_trial[c]] = _trial[c];
+                            _trial[c] = c;
+                            pairs -= 1;
+                        }
+                    }
+                    _trial[a] = b;
+                    _trial[b] = a;
+                }
+                if (pairs > _maxPairs) {
+                    continue;
+                }
+                double delta = delta(a, b);
+                double temperature = _temperature * (1 - (double) t
+                                                     / iterations);
+                if (delta > 0 || (temperature > 0 && _random.nextDouble()
+                                  < Math.exp(delta / temperature))) {
+                    accept(pairs, delta);
+                    if (_score > bestScore) {
+                        bestScore = _score;
+                        System.arraycopy(_plug, 0, best, 0, _size);
+                    }
+                }
+            }
+            return new Solution(cycles(best), bestScore);
+        }
+
+        /** Return the change in score from replacing _plug by _trial,
+         *  which differ only in the characters A and B and their
+         *  partners, leaving the new decryption of the affected
+         *  keystrokes _affected[0 .. _numAffected-1] in _newPlain. */
+        private double delta(int a, int b) {
+            _epoch += 1;
+            _numAffected = 0;
+            for (int c : new int[] { a, b, _plug[a], _plug[b] }) {
+                for (int k : _byCipher[c]) {
+                    affect(k);
+                }
+                for (int i = 0; i < _midCounts[c]; i += 1) {
+                    affect(_byMid[c][i]);
+                }
+            }
+            double result = 0;
+            if (_bigrams == null) {
+                for (int i = 0; i < _numAffected; i += 1) {
+                    int k = _affected[i];
+                    result -= 2 * (_counts[_plain[k]] - 1);
+                    _counts[_plain[k]] -= 1;
+                    result += 2 * _counts[_newPlain[k]];
+                    _counts[_newPlain[k]] += 1;
+                }
+                for (int i = 0; i < _numAffected; i += 1) {
+                    int k = _affected[i];
+                    _counts[_newPlain[k]] -= 1;
+                    _counts[_plain[k]] += 1;
+                }
+                return result;
+            }
+            int n = _cipher.length;
+            for (int i = 0; i < _numAffected; i += 1) {
+                int k = _affected[i];
+                if (k > 0 && _stamp[k - 1] != _epoch) {
+                    result += bigram(_plain[k - 1], _newPlain[k])
+                        - bigram(_plain[k - 1], _plain[k]);
+                }
+                if (k + 1 < n) {
+                    int next = _stamp[k + 1] == _epoch ? _newPlain[k + 1]
+                        : _plain[k + 1];
+                    result += bigram(_newPlain[k], next)
+                        - bigram(_plain[k], _plain[k + 1]);
+                }
+            }
+            return result;
+        }
+
+        /** Mark keystroke K as affected by the trial change, computing
+         *  its new decryption. */
+        private void affect(int k) {
+            if (_stamp[k] != _epoch) {
+                _stamp[k] = _epoch;
+                _affected[_numAffected++] = k;
+                _newPlain[k] =
+                    _trial[_scrambler[k * _size + _trial[_cipher[k]]]];
+            }
+        }
+
+        /** Make the trial change, which has PAIRS plug pairs and changes
+         *  the score by DELTA. */
+        private void accept(int pairs, double delta) {
+            for (int i = 0; i < _numAffected; i += 1) {
+                int k = _affected[i];
+                _counts[_plain[k]] -= 1;
+                _plain[k] = _newPlain[k];
+                _counts[_plain[k]] += 1;
+            }
+            System.arraycopy(_trial, 0, _plug, 0, _size);
+            for (int i = 0; i < _numAffected; i += 1) {
+                int k = _affected[i];
+                _mid[k] = _scrambler[k * _size + _plug[_cipher[k]]];
+            }
+            indexMids();
+            _pairs = pairs;
+            _score += delta;
+        }
+
+        /** Index the keystrokes by the character that leaves the rotors
+         *  at each, in _byMid. */
+        private void indexMids() {
+            Arrays.fill(_midCounts, 0);
+            for (int mid : _mid) {
+                _midCounts[mid] += 1;
+            }
+            for (int c = 0; c < _size; c += 1) {
+                if (_byMid[c] == null || _byMid[c].length < _midCounts[c]) {
+                    _byMid[c] = new int[_midCounts[c] + MID_SLACK];
+                }
+                _midCounts[c] = 0;
+            }
+            for (int k = 0; k < _mid.length; k += 1) {
+                _byMid[_mid[k]][_midCounts[_mid[k]]++] = k;
+            }
+        }
+
+        /** Return the score of the current decryption. */
+        private double fullScore() {
+            double result = 0;
+            if (_bigrams == null) {
+                for (int count : _counts) {
+                    result += (double) count * (count - 1);
+                }
+            } else {
+                for (int k = 1; k < _plain.length; k += 1) {
+                    result += bigram(_plain[k - 1], _plain[k]);
+                }
+            }
+            return result;
+        }
+
+        /** Return the score of the pair of characters A, B. */
+        private double bigram(int a, int b) {
+            return _bigrams[a * _size + b];
+        }
+
+        /** Log-frequencies of pairs, or null to score by coincidences. */
+        private final double[] _bigrams;
+        /** Source of random changes. */
+        private final SplittableRandom _random;
+        /** The current plugboard: _plug[C] is C's partner (or C). */
+        private final int[] _plug;
+        /** A plugboard being considered. */
+        private final int[] _trial;
+        /** Number of pairs in _plug. */
+        private int _pairs;
+        /** The character leaving the rotors at each keystroke. */
+        private final int[] _mid;
+        /** The current decryption. */
+        private final int[] _plain;
+        /** Number of occurrences of each character in _plain. */
+        private final int[] _counts;
+        /** _byMid[C][0 .. _midCounts[C]-1] are the keystrokes at which C
+         *  leaves the rotors. */
+        private final int[][] _byMid;
+        /** See _byMid. */
+        private final int[] _midCounts;
+        /** Keystrokes affected by the trial change. */
+        private final int[] _affected;
+        /** Number of affected keystrokes. */
+        private int _numAffected;
+        /** Decryption of the affected keystrokes under the trial. */
+        private final int[] _newPlain;
+        /** _stamp[K] == _epoch iff keystroke K is affected. */
+        private final int[] _stamp;
+        /** Number of the current trial. */
+        private int _epoch;
+        /** Score of the current decryption. */
+        private double _score;
+    }
+
+    /** Return PLUG, mapping each character to its partner, in cycle
+     *  notation. */
+    private String cycles(int[] plug) {
+        StringBuilder result = new StringBuilder();
+        for (int a = 0; a < _size; a += 1) {
+            if (plug[a] > a) {
+                result.append('(').append(_alphabet.toChar(a))
+                    .append(_alphabet.toChar(plug[a])).append(") ");
+            }
+        }
+        return result.toString().trim();
+    }
+
+    /** Iterations between checks of the clock, less 1. */
+    private static final long CLOCK_MASK = (1 << 10) - 1;
+
+    /** Extra room allotted in each list of _byMid. */
+    private static final int MID_SLACK = 16;
+
+    /** The alphabet. */
+    private final Alphabet _alphabet;
+
+    /** Its size. */
+    private final int _size;
+
+    /** The ciphertext, as alphabet indices. */
+    private final int[] _cipher;
+
+    /** _scrambler[K * size + C] is the result of passing C through the
+     *  rotors at keystroke K. */
+    private final char[] _scrambler;
+
+    /** _byCipher[C] lists the keystrokes at which C was typed. */
+    private final int[][] _byCipher;
+
+    /** Largest number of plug pairs. */
+    private int _maxPairs = Integer.MAX_VALUE;
+
+    /** Initial annealing temperature. */
+    private double _temperature;
+
+}
@@ -0,0 +1,139 @@
+package enigma;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import static enigma.EnigmaException.*;
+
+/** Decrypts arbitrary ranges of a long message stored in a file, as
+ *  written by Machine.convert: single-byte characters in groups of
+ *  Machine.GROUP_SIZE separated by single blanks.  The rotor settings at
+ *  any character of the message are computed directly (see
+ *  Machine.advance) and only the bytes holding the range are read, so
+ *  the cost of decrypting a range depends on its length and not on
+ *  where it lies.
+ *  @author Peter Sorensen
+ */
+class RangeDecryptor {
+
+    /** A decryptor for the message beginning at byte START of the file
+     *  open on IN, which was encrypted by a machine in the state M is in
+     *  now.  M's alphabet must consist of single-byte characters; it is
+     *  used, and its state changed, by decrypt. */
+    RangeDecryptor(Machine m, FileChannel in, long start) {
+        m.checkSingleByte();
+        _m = m;
+        _start = m.snapshot();
+        _in = in;
+        _offset = start;
+    }
+
+    /** Return a decryptor for the first message line in the file open
+     *  on IN, which must be preceded by a settings line (and perhaps
+     *  blank lines), using M, a machine of the configuration named in
+     *  the settings line. */
+    static RangeDecryptor open(Machine m, FileChannel in)
+        throws IOException {
+        long pos = 0;
+        ByteBuffer buf = ByteBuffer.allocate(LINE_BUFFER_SIZE);
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            buf.clear();
+            int n = in.read(buf, pos);
+            if (n < 0) {
+                throw error("no message follows the settings");
+            }
+            for (int i = 0; i < n; i += 1) {
+                char c = (char) (buf.get(i) & BYTE_MASK);
+                pos += 1;
+                if (c == '\n') {
+                    if (LineProcessor.isSettings(line)) {
+                        LineProcessor.setUp(m, line.toString().trim());
+                        return new RangeDecryptor(m, in, pos);
+                    } else if (!line.toString().isBlank()) {
+                        throw error("message must follow a settings line");
+                    }
+                    line.setLength(0);
+                } else {
+                    line.append(c);
+                }
+            }
+        }
+    }
+
+    /** Return the byte offset, from the start of a grouped message, of
+     *  its character number INDEX. */
+    static long byteOffset(long index) {
+        return index + index / Machine.GROUP_SIZE;
+    }
+
+    /** Return the decryption of characters FROM .. TO-1 of my message
+     *  (not counting group separators), where 0 <= FROM <= TO.  It is an
+     *  error if the message has fewer than TO characters. */
+    String decrypt(long from, long to) throws IOException {
+        if (from < 0 || to < from) {
+            throw error("invalid range: %d-%d", from, to);
+        }
+        if (from == to) {
+            return "";
+        }
+        long first = _offset + byteOffset(from),
+            last = _offset + byteOffset(to - 1);
+        long span = last - first + 1;
+        if (to - from > Integer.MAX_VALUE || span > Integer.MAX_VALUE) {
+            throw error("range too long");
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) span);
+        while (buf.hasRemaining()) {
+            if (_in.read(buf, first + buf.position()) < 0) {
+                throw error("range extends past the end of the file");
+            }
+        }
+        byte[] text = new byte[(int) (to - from)];
+        int k = 0;
+        for (int i = 0; i < span; i += 1) {
+            byte b = buf.get(i);
+            if (b == '\n' || b == '\r') {
+                throw error("range extends past the end of the message");
+            }
+            if (b != ' ') {
+                if (k == text.length) {
+                    throw error("message is not in groups of %d",
+                                Machine.GROUP_SIZE);
+                }
+                text[k++] = b;
+            }
+        }
+        if (k != text.length) {
+            throw error("message is not in groups of %d",
+                        Machine.GROUP_SIZE);
+        }
+        _m.restore(_start);
+        _m.advance(from);
+        _m.convertInPlace(text, 0, text.length);
+        return new String(text, StandardCharsets.ISO_8859_1);
+    }
+
+    /** Mask selecting the low-order byte of an int. */
+    private static final int BYTE_MASK = 0xff;
+
+    /** Number of bytes read at a time while looking for the settings
+     *  line. */
+    private static final int LINE_BUFFER_SIZE = 1 << 12;
+
+    /** The machine used to decrypt. */
+    private final Machine _m;
+
+    /** The state of _m at the start of the message. */
+    private final Machine.Snapshot _start;
+
+    /** The file holding the message. */
+    private final FileChannel _in;
+
+    /** Byte offset of the message in _in. */
+    private final long _offset;
+
+}
@@ -5,7 +5,7 @@ import static enigma.EnigmaException.*;
 /** Superclass that represents a rotor in the enigma machine.
  *  @author Peter Sorensen
  */
-class Rotor {
+class Rotor implements Cloneable {
 
     /** A rotor named NAME whose permutation is given by PERM. */
     Rotor(String name, Permutation perm) {
@@ -14,6 +14,17 @@ class Rotor {
         _setting = 0;
     }
 
+    /** Return a new rotor like me, in my current setting, that may be
+     *  set and advanced independently of me.  My permutation and
+     *  conversion tables are shared, since they do not change. */
+    Rotor copy() {
+        try {
+            return (Rotor) clone();
+        } catch (CloneNotSupportedException excp) {
+            throw new AssertionError(excp);
+        }
+    }
+
     /** Return my name. */
     String name() {
         return _name;
@@ -52,16 +63,66 @@ class Rotor {
     /** Set setting() to POSN.  */
     void set(int posn) {
         _setting = posn;
+        _row = posn * size();
     }
 
     /** Set setting() to character CPOSN. */
     void set(char cposn) {
-        _setting = alphabet().toInt(cposn);
+        set(alphabet().toInt(cposn));
+    }
+
+    /** Precompute my conversions at every setting, so that
+     *  convertForward and convertBackward become single table lookups.
+     *  The tables take 2 * size() * size() ints, so this is best left
+     *  off for very large alphabets. */
+    void tabulate() {
+        int n = size();
+        _forwardTable = new int[n * n];
+        _backwardTable = new int[n * n];
+        for (int posn = 0; posn < n; posn++) {
+            for (int p = 0; p < n; p++) {
+                _forwardTable[posn * n + p] = _permutation.wrap(
+                        _permutation.permute(p + posn) - posn);
+                _backwardTable[posn * n + p] = _permutation.wrap(
+                        _permutation.invert(p + posn) - posn);
+            }
+        }
+    }
+
+    /** Return true iff my conversions have been precomputed by
+     *  tabulate(). */
+    boolean tabulated() {
+        return _forwardTable != null;
+    }
+
+    /** Return the conversion of P (an integer in the range 0..size()-1)
+     *  according to my permutation when I am at setting POSN.  Does not
+     *  depend on or change my setting. */
+    int convertForward(int p, int posn) {
+        if (_forwardTable != null) {
+            return _forwardTable[posn * size() + p];
+        }
+        return _permutation.wrap(_permutation.permute(
+                _permutation.wrap(p + posn)) - posn);
+    }
+
+    /** Return the conversion of E (an integer in the range 0..size()-1)
+     *  according to the inverse of my permutation when I am at setting
+     *  POSN.  Does not depend on or change my setting. */
+    int convertBackward(int e, int posn) {
+        if (_backwardTable != null) {
+            return _backwardTable[posn * size() + e];
+        }
+        return _permutation.wrap(_permutation.invert(
+                _permutation.wrap(e + posn)) - posn);
     }
 
     /** Return the conversion of P (an integer in the range 0..size()-1)
      *  according to my permutation. */
     int convertForward(int p) {
+        if (_forwardTable != null) {
+            return _forwardTable[_row + p];
+        }
         return _permutation.wrap(_permutation.permute(
                 _permutation.wrap(p + setting())) - setting());
     }
@@ -69,6 +130,9 @@ class Rotor {
     /** Return the conversion of E (an integer in the range 0..size()-1)
      *  according to the inverse of my permutation. */
     int convertBackward(int e) {
+        if (_backwardTable != null) {
+            return _backwardTable[_row + e];
+        }
         return _permutation.wrap(_permutation.invert(
                 _permutation.wrap(e + setting())) - setting());
     }
@@ -91,6 +155,18 @@ class Rotor {
     /** My current setting. */
     private int _setting;
 
+    /** Offset of the row for my current setting in my conversion
+     *  tables, i.e. setting() * size(). */
+    private int _row;
+
+    /** When non-null, the conversion of P at setting S by my permutation,
+     *  stored at index S * size() + P. */
+    private int[] _forwardTable;
+
+    /** When non-null, the conversion of E at setting S by the inverse
+     *  of my permutation, stored at index S * size() + E. */
+    private int[] _backwardTable;
+
     /** My name. */
     private final String _name;
 
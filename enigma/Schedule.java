@@ -0,0 +1,307 @@
+package enigma;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/** An increasing sequence of step numbers, such as the steps at which a
+ *  rotor advances or is at one of its notches.  The sequence consists of
+ *  a finite list of initial steps followed by a part that repeats
+ *  forever with a fixed period (or not at all).  Schedules let the
+ *  machine determine how far each rotor moves in N steps without
+ *  simulating them.
+ *  @author Peter Sorensen
+ */
+class Schedule {
+
+    /** The schedule consisting of INITIAL (increasing) followed by
+     *  START + k * PERIOD + OFFSETS[i] for all k >= 0 and all i, where
+     *  OFFSETS is increasing, lies in [0 .. PERIOD-1], and all INITIAL
+     *  steps are less than START.  An empty OFFSETS means the schedule
+     *  is finite. */
+    Schedule(long[] initial, long start, long period, long[] offsets) {
+        _initial = initial;
+        _start = start;
+        _period = period;
+        _offsets = offsets;
+    }
+
+    /** The empty schedule. */
+    static final Schedule NONE =
+        new Schedule(new long[0], 0, 1, new long[0]);
+
+    /** The schedule containing every step. */
+    static final Schedule EVERY =
+        new Schedule(new long[0], 0, 1, new long[] { 0 });
+
+    /** Return the number of my steps that are less than T. */
+    long count(long t) {
+        int k = Arrays.binarySearch(_initial, t);
+        long result = k >= 0 ? k : -k - 1;
+        if (t > _start && _offsets.length > 0) {
+            long q = (t - _start) / _period, r = (t - _start) % _period;
+            k = Arrays.binarySearch(_offsets, r);
+            result += q * _offsets.length + (k >= 0 ? k : -k - 1);
+        }
+        return result;
+    }
+
+    /** Return my Kth step (numbering from 0), or Long.MAX_VALUE if I
+     *  have no more than K steps. */
+    long get(long k) {
+        if (k < _initial.length) {
+            return _initial[(int) k];
+        } else if (_offsets.length == 0) {
+            return Long.MAX_VALUE;
+        }
+        k -= _initial.length;
+        return _start + k / _offsets.length * _period
+            + _offsets[(int) (k % _offsets.length)];
+    }
+
+    /** Return true iff I am finite. */
+    boolean finite() {
+        return _offsets.length == 0;
+    }
+
+    /** Change POSNS, the positions of the rotors in a machine's slots,
+     *  to those they will have after N keystrokes (N >= 0).  NOTCHES[i]
+     *  is the set of notch positions of the rotor in slot i, or null if
+     *  that rotor does not move.  The machine has PAWLS pawls and an
+     *  alphabet of SIZE characters, and steps as for Machine.step. */
+    static void jump(int[] posns, BitSet[] notches, int pawls, int size,
+                     long n) {
+        if (n > 0) {
+            new Course(posns, notches, pawls, size).positions(n, posns);
+        }
+    }
+
+    /** The course of the rotors of a machine from particular starting
+     *  positions: the schedule of steps at which each rotor advances.
+     *  Building a course takes time that depends on the alphabet size
+     *  and the rotors' notches; thereafter the positions after any
+     *  number of keystrokes are found by evaluating one schedule per
+     *  rotor. */
+    static final class Course {
+
+        /** The course of the rotors of a machine starting at positions
+         *  START, where NOTCHES, PAWLS, and SIZE are as for jump. */
+        Course(int[] start, BitSet[] notches, int pawls, int size) {
+            _start = start.clone();
+            _notches = notches.clone();
+            _size = size;
+            _advances = new Schedule[start.length];
+            int last = start.length - 1;
+            Schedule triggers;
+            if (notches[last] != null) {
+                _advances[last] = EVERY;
+                triggers = atNotches(start[last], notches[last], size);
+            } else {
+                _advances[last] = NONE;
+                triggers = NONE;
+            }
+            for (int i = last - 1; i >= start.length - pawls; i -= 1) {
+                if (notches[i] == null) {
+                    _advances[i] = NONE;
+                    triggers = NONE;
+                } else {
+                    Schedule[] s =
+                        follow(start[i], notches[i], size, triggers);
+                    _advances[i] = s[0];
+                    triggers = s[1];
+                }
+            }
+        }
+
+        /** Return true iff I am a course of rotors whose notches are
+         *  NOTCHES, starting from positions POSNS. */
+        boolean startsAt(int[] posns, BitSet[] notches) {
+            return Arrays.equals(_start, posns) && moves(notches);
+        }
+
+        /** Return true iff I am a course of rotors whose notches are
+         *  NOTCHES. */
+        boolean moves(BitSet[] notches) {
+            return Arrays.equals(_notches, notches);
+        }
+
+        /** Set POSNS to the positions of the rotors after T >= 0
+         *  keystrokes. */
+        void positions(long t, int[] posns) {
+            for (int i = 0; i < posns.length; i += 1) {
+                posns[i] = _advances[i] == null ? _start[i]
+                    : (int) ((_start[i] + _advances[i].count(t) % _size)
+                             % _size);
+            }
+        }
+
+        /** Starting positions of the rotors. */
+        private final int[] _start;
+        /** Notches of the rotors, by slot. */
+        private final BitSet[] _notches;
+        /** Number of rotor positions. */
+        private final int _size;
+        /** Steps at which each rotor advances, or null for slots with
+         *  no pawl. */
+        private final Schedule[] _advances;
+    }
+
+    /** Return the schedule of steps at which a rotor that always
+     *  advances, has SIZE positions, notches at the positions in
+     *  NOTCHES, and is initially at position POSN, is at a notch. */
+    static Schedule atNotches(int posn, BitSet notches, int size) {
+        long[] offsets = new long[notches.cardinality()];
+        int k = 0;
+        for (int d = 0; d < size; d += 1) {
+            if (notches.get((posn + d) % size)) {
+                offsets[k++] = d;
+            }
+        }
+        return new Schedule(new long[0], 0, size, offsets);
+    }
+
+    /** Return a two-element array containing the schedule of steps at
+     *  which a rotor advances and the schedule of steps at which it is at
+     *  a notch.  The rotor has SIZE positions, starts at position POSN,
+     *  and has notches at the positions in NOTCHES.  It advances at each
+     *  step in TRIGGERS (those at which its right neighbor is at a
+     *  notch) and at each step at which it is itself at a notch, as for
+     *  Machine.step. */
+    static Schedule[] follow(int posn, BitSet notches, int size,
+                             Schedule triggers) {
+        if (notches.cardinality() == size) {
+            return new Schedule[] { EVERY, EVERY };
+        }
+        Follower f = new Follower(posn, notches, size, triggers);
+        if (triggers.finite()) {
+            f.runUntil(Long.MAX_VALUE);
+            return new Schedule[] {
+                f._advances.toSchedule(f._advances._size, 0, 1),
+                f._events.toSchedule(f._events._size, 0, 1)
+            };
+        }
+        f.runUntil(triggers._start);
+        int[] seen = new int[size];
+        Arrays.fill(seen, -1);
+        int[] advanceMarks = new int[size + 1],
+            eventMarks = new int[size + 1];
+        for (int q = 0; true; q += 1) {
+            if (seen[f._posn] >= 0) {
+                int a = seen[f._posn];
+                long start = triggers._start + a * triggers._period,
+                    period = (q - a) * triggers._period;
+                return new Schedule[] {
+                    f._advances.toSchedule(advanceMarks[a], start, period),
+                    f._events.toSchedule(eventMarks[a], start, period)
+                };
+            }
+            seen[f._posn] = q;
+            advanceMarks[q] = f._advances._size;
+            eventMarks[q] = f._events._size;
+            f.runUntil(triggers._start + (q + 1) * triggers._period);
+        }
+    }
+
+    /** Simulates a single rotor driven by a schedule of triggers,
+     *  recording the steps at which it advances and is at a notch. */
+    private static class Follower {
+
+        /** A follower for a rotor with SIZE positions starting at POSN
+         *  with notches NOTCHES, driven by TRIGGERS. */
+        Follower(int posn, BitSet notches, int size, Schedule triggers) {
+            _posn = posn;
+            _notches = notches;
+            _size = size;
+            _triggers = triggers;
+            _next = triggers.get(0);
+        }
+
+        /** Simulate all steps before step END (or until nothing more
+         *  can happen, if END is Long.MAX_VALUE). */
+        void runUntil(long end) {
+            while (_now < end) {
+                if (_notches.get(_posn)) {
+                    _events.add(_now);
+                    move();
+                } else if (_next >= end) {
+                    _now = end;
+                } else {
+                    _now = _next;
+                    move();
+                }
+            }
+        }
+
+        /** Advance the rotor at the current step, consuming the trigger
+         *  at that step, if any. */
+        private void move() {
+            _advances.add(_now);
+            _posn = (_posn + 1) % _size;
+            if (_next == _now) {
+                _k += 1;
+                _next = _triggers.get(_k);
+            }
+            _now += 1;
+        }
+
+        /** Current position of the rotor. */
+        private int _posn;
+        /** The rotor's notches. */
+        private final BitSet _notches;
+        /** Number of rotor positions. */
+        private final int _size;
+        /** Steps at which the rotor is triggered by its neighbor. */
+        private final Schedule _triggers;
+        /** Index in _triggers of the next trigger. */
+        private long _k;
+        /** The next trigger step. */
+        private long _next;
+        /** The current step; all earlier steps have been simulated. */
+        private long _now;
+        /** Steps at which the rotor advanced. */
+        private final Steps _advances = new Steps();
+        /** Steps at which the rotor was at a notch. */
+        private final Steps _events = new Steps();
+    }
+
+    /** A growable list of steps. */
+    private static class Steps {
+
+        /** Append STEP. */
+        void add(long step) {
+            if (_size == _steps.length) {
+                _steps = Arrays.copyOf(_steps, 2 * _size + 1);
+            }
+            _steps[_size++] = step;
+        }
+
+        /** Return the schedule whose initial steps are my first MARK steps
+         *  and whose repeating part, beginning at START with period
+         *  PERIOD, consists of my remaining steps. */
+        Schedule toSchedule(int mark, long start, long period) {
+            long[] offsets = new long[_size - mark];
+            for (int i = mark; i < _size; i += 1) {
+                offsets[i - mark] = _steps[i] - start;
+            }
+            return new Schedule(Arrays.copyOf(_steps, mark), start, period,
+                                offsets);
+        }
+
+        /** The steps. */
+        private long[] _steps = new long[0];
+        /** Number of steps. */
+        private int _size;
+    }
+
+    /** My initial steps. */
+    private final long[] _initial;
+
+    /** First step of my repeating part. */
+    private final long _start;
+
+    /** Period of my repeating part. */
+    private final long _period;
+
+    /** Offsets from _start of the steps in one period. */
+    private final long[] _offsets;
+
+}
@@ -0,0 +1,108 @@
+package enigma;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static enigma.EnigmaException.*;
+
+/** Converts long stretches of a single message on several threads.  The
+ *  rotor positions at any point of a message depend only on the number
+ *  of characters converted before it, so the text is divided into
+ *  pieces, a copy of the machine is brought to the state it will have at
+ *  the start of each piece, and the pieces are converted concurrently.
+ *  @author Peter Sorensen
+ */
+class SplitConverter {
+
+    /** A converter that divides its input into at most PIECES pieces,
+     *  converting them on POOL. */
+    SplitConverter(ExecutorService pool, int pieces) {
+        _pool = pool;
+        _pieces = pieces;
+    }
+
+    /** Convert IN[OFF .. OFF+LEN-1] with M into OUT starting at OUTOFF,
+     *  exactly as M.convertMore(IN, OFF, LEN, OUT, OUTOFF) would, and
+     *  leave M in the state that call would have left it in.  Returns
+     *  the number of characters written. */
+    int convertMore(Machine m, char[] in, int off, int len,
+                    char[] out, int outOff) {
+        int pieces = Math.min(_pieces, len / MIN_PIECE);
+        if (pieces < 2) {
+            return m.convertMore(in, off, len, out, outOff);
+        }
+
+        Machine state = m.copy();
+        ArrayList<Future<char[]>> results = new ArrayList<>();
+        for (int k = 0; k < pieces; k += 1) {
+            int start = off + (int) ((long) len * k / pieces),
+                end = off + (int) ((long) len * (k + 1) / pieces);
+            results.add(_pool.submit(convertPiece(state.copy(), in,
+                                                  start, end)));
+            int count = 0;
+            for (int i = start; i < end; i += 1) {
+                if (in[i] != ' ') {
+                    count += 1;
+                }
+            }
+            state.advance(count);
+            if (count > 0) {
+                state.setGrouped((state.grouped() + count - 1)
+                                 % Machine.GROUP_SIZE + 1);
+            }
+        }
+
+        int k = outOff;
+        for (Future<char[]> result : results) {
+            char[] piece = get(result);
+            System.arraycopy(piece, 0, out, k, piece.length);
+            k += piece.length;
+        }
+        for (int i = 0; i < m.numRotors(); i += 1) {
+            m.getSlots()[i].set(state.getSlots()[i].setting());
+        }
+        m.setGrouped(state.grouped());
+        return k - outOff;
+    }
+
+    /** Return a task that converts IN[START .. END-1] with M and returns
+     *  the result. */
+    private static Callable<char[]> convertPiece(Machine m, char[] in,
+                                                 int start, int end) {
+        return () -> {
+            int len = end - start;
+            char[] out = new char[len + len / Machine.GROUP_SIZE + 1];
+            int n = m.convertMore(in, start, len, out, 0);
+            return n == out.length ? out : Arrays.copyOf(out, n);
+        };
+    }
+
+    /** Return the result of TASK, waiting for it if necessary. */
+    private static char[] get(Future<char[]> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException excp) {
+            throw error("interrupted");
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw error("%s", excp.getCause());
+        }
+    }
+
+    /** Smallest number of characters worth converting as a separate
+     *  piece. */
+    static final int MIN_PIECE = 1 << 14;
+
+    /** Pool on which pieces are converted. */
+    private final ExecutorService _pool;
+
+    /** Maximum number of pieces into which to divide the input. */
+    private final int _pieces;
+
+}
@@ -4,10 +4,40 @@ import ucb.junit.textui;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.Collection;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import javax.management.ReflectionException;
 import static enigma.TestUtils.*;
 
 /** The suite of all JUnit tests for the enigma package.
@@ -33,6 +63,21 @@ public class UnitTest {
         return new FixedRotor(name, new Permutation(rotors.get(name), UPPER));
     }
 
+    /** Returns a new machine with rotors B, Beta, III, IV and I from
+     *  NAVALA inserted, set to SETTING, with plugboard PLUG. */
+    private Machine setMachine(String setting, String plug) {
+        Rotor[] addTo = new Rotor[]{
+            setReflector("B", NAVALA), setFixed("Beta", NAVALA),
+            setRotor("III", NAVALA, "V"), setRotor("IV", NAVALA, "J"),
+            setRotor("I", NAVALA, "Q")
+        };
+        Machine result = new Machine(UPPER, 5, 3, Arrays.asList(addTo));
+        result.insertRotors(new String[]{"B", "Beta", "III", "IV", "I"});
+        result.setRotors(setting);
+        result.setPlugboard(new Permutation(plug, UPPER));
+        return result;
+    }
+
     /** Run the JUnit tests in this package. Add xxxTest.class entries to
      *  the arguments of runClasses to run other JUnit tests. */
     public static void main(String[] ignored) {
@@ -105,6 +150,929 @@ public class UnitTest {
         assertEquals(cool.convert(input), output);
     }
 
+    @Test
+    public void testBulkConvert() {
+        Reflector one = setReflector("B", NAVALA);
+        FixedRotor two = setFixed("Beta", NAVALA);
+        MovingRotor three = setRotor("III", NAVALA, "V");
+        MovingRotor four = setRotor("IV", NAVALA, "J");
+        MovingRotor five = setRotor("I", NAVALA, "Q");
+        Rotor[] addTo = new Rotor[]{one, two, three, four, five};
+        Collection<Rotor> coll = new ArrayList<Rotor>();
+        coll.addAll(Arrays.asList(addTo));
+        Machine cool = new Machine(UPPER, 5, 3, coll);
+        String[] available = new String[]{"B", "Beta", "III", "IV", "I"};
+        cool.insertRotors(available);
+        cool.setRotors("AXLE");
+        cool.setPlugboard(new Permutation("(HQ) (EX) (IP) (TR) (BY)", UPPER));
+        char[] in = "**FROM his shoulder Hiawatha**".toCharArray();
+        char[] out = new char[40];
+        int n = cool.convert(in, 2, in.length - 4, out, 1);
+        assertEquals("QVPQS OKOIL PUBKJ ZPISF XDW", new String(out, 1, n));
+    }
+
+    @Test
+    public void testBufferConvert() {
+        String msg = "FROM his shoulder Hiawatha";
+        CharBuffer out = CharBuffer.allocate(40);
+        out.position(2);
+        setMachine("AXLE", "(HQ) (EX) (IP) (TR) (BY)")
+            .convert(CharBuffer.wrap(msg), out);
+        out.flip().position(2);
+        assertEquals("QVPQS OKOIL PUBKJ ZPISF XDW", out.toString());
+        out.clear().limit(20);
+        try {
+            setMachine("AXLE", "").convert(CharBuffer.wrap(msg), out);
+            fail("output past the limit");
+        } catch (BufferOverflowException excp) {
+            assertEquals(20, out.position());
+        }
+    }
+
+    @Test
+    public void testByteConvert() {
+        Machine cool = setMachine("AXLE", "(HQ) (EX) (IP) (TR) (BY)");
+        byte[] in = "**FROM his shoulder Hiawatha**"
+            .getBytes(StandardCharsets.US_ASCII);
+        byte[] out = new byte[40];
+        int n = cool.convertMore(in, 2, in.length - 4, out, 1);
+        assertEquals("QVPQS OKOIL PUBKJ ZPISF XDW",
+                     new String(out, 1, n, StandardCharsets.US_ASCII));
+        ByteBuffer direct = ByteBuffer.allocateDirect(40);
+        cool.setRotors("AXLE");
+        cool.setGrouped(0);
+        cool.convertMore(ByteBuffer.wrap(in), 2, in.length - 4, direct);
+        direct.flip();
+        assertEquals(n, direct.remaining());
+        for (int i = 0; i < n; i += 1) {
+            assertEquals(out[1 + i], direct.get(i));
+        }
+        ByteBuffer heap = ByteBuffer.allocate(40).limit(20);
+        cool.setRotors("AXLE");
+        try {
+            cool.convertMore(ByteBuffer.wrap(in), 2, in.length - 4, heap);
+            fail("output past the limit");
+        } catch (BufferOverflowException excp) {
+            assertEquals(20, heap.position());
+            assertEquals(0, heap.array()[20]);
+        }
+    }
+
+    /** A configuration file describing the rotors of setMachine. */
+    private static final String CONFIG =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZ\n 5 3\n"
+        + " I MQ " + NAVALA.get("I") + "\n III MV " + NAVALA.get("III")
+        + "\n IV MJ " + NAVALA.get("IV") + "\n Beta N " + NAVALA.get("Beta")
+        + "\n B R " + NAVALA.get("B") + "\n";
+
+    /** Return the output of the simulator, run with the options OPTIONS
+     *  on configuration CONFIG and input INPUT, reading and writing
+     *  files. */
+    private static String runMain(String input, String... options)
+        throws IOException {
+        return runConfig(CONFIG, input, options);
+    }
+
+    /** As for runMain, but using the configuration CONF. */
+    private static String runConfig(String conf, String input,
+                                    String... options) throws IOException {
+        Path config = Files.createTempFile("enigma", ".conf"),
+            in = Files.createTempFile("enigma", ".inp"),
+            out = Files.createTempFile("enigma", ".out");
+        try {
+            Files.writeString(config, conf);
+            Files.writeString(in, input);
+            String[] args = Arrays.copyOf(options, options.length + 3);
+            args[options.length] = config.toString();
+            args[options.length + 1] = in.toString();
+            args[options.length + 2] = out.toString();
+            try {
+                new Main(args).process();
+            } catch (EnigmaException excp) {
+                return "Error: " + Files.readString(out);
+            }
+            return Files.readString(out);
+        } finally {
+            Files.delete(config);
+            Files.delete(in);
+            Files.delete(out);
+        }
+    }
+
+    @Test
+    public void testMappedOutput() throws IOException {
+        String input = "* B Beta III IV I AXLE (HQ) (EX)\n" + ENGLISH
+            + "\r\n\n* B Beta I III IV ZZZZ\nFROM his shoulder Hiawatha\n";
+        String expected = runMain(input);
+        assertEquals(expected, runMain(input, "--mmap"));
+
+        String bad = "* B Beta III IV I AXLE\nFROM his shoulder\n"
+            + "* B Beta III IV\nHiawatha\n";
+        String valid = bad.substring(0, bad.indexOf("* B Beta III IV\n"));
+        assertEquals("Error: " + runMain(valid), runMain(bad, "--mmap"));
+    }
+
+    @Test
+    public void testLineProcessor() throws IOException {
+        String settings1 = "* B Beta III IV I AXLE (HQ) (EX)",
+            settings2 = "* B Beta I III IV ZZZZ";
+        String input = settings1 + "\r\nFROM his shoulder Hiawatha\r\n\r\n"
+            + "  Took the camera of rosewood\n" + settings2
+            + "\rHELLO WORLD\n\n";
+        Machine m = setMachine("AAAA", "");
+        LineProcessor.setUp(m, settings1);
+        String nl = LineProcessor.NEWLINE;
+        String expected = m.convert("FROM his shoulder Hiawatha") + nl + nl
+            + m.convert("Took the camera of rosewood") + nl;
+        LineProcessor.setUp(m, settings2);
+        expected += m.convert("HELLO WORLD") + nl + nl;
+
+        char[] chars = input.toCharArray();
+        byte[] bytes = input.getBytes(StandardCharsets.US_ASCII);
+        for (int split = 0; split <= chars.length; split += 1) {
+            StringWriter out = new StringWriter();
+            LineProcessor lines =
+                new LineProcessor(setMachine("AAAA", ""), out);
+            lines.process(chars, 0, split);
+            lines.process(chars, split, chars.length);
+            lines.finish();
+            assertEquals(msg("chars", "split at %d", split),
+                         expected, out.toString());
+
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            ByteWriter writer =
+                new ByteChannelWriter(Channels.newChannel(bout), 64);
+            lines = new LineProcessor(setMachine("AAAA", ""), writer);
+            lines.process(ByteBuffer.wrap(bytes, 0, split).slice());
+            lines.process(ByteBuffer.wrap(bytes, split,
+                                          bytes.length - split).slice());
+            lines.finish();
+            writer.flush();
+            assertEquals(msg("bytes", "split at %d", split), expected,
+                         bout.toString(StandardCharsets.US_ASCII));
+        }
+
+        StringWriter out = new StringWriter();
+        LineProcessor lines = new LineProcessor(setMachine("AAAA", ""), out);
+        for (int i = 0; i < chars.length; i += 1) {
+            lines.process(chars, i, i + 1);
+        }
+        lines.finish();
+        assertEquals(expected, out.toString());
+    }
+
+    @Test
+    public void testParallel() throws IOException {
+        String[] terminators = { "\n", "\r\n", "\r" };
+        Random random = new Random(61);
+        StringBuilder input = new StringBuilder();
+        for (int k = 0; k < 1200; k += 1) {
+            input.append("* B Beta III IV I ");
+            for (int i = 0; i < 4; i += 1) {
+                input.append(UPPER_STRING.charAt(random.nextInt(26)));
+            }
+            input.append(k % 3 == 0 ? " (HQ) (EX)" : "")
+                .append(terminators[random.nextInt(3)]);
+            for (int lines = random.nextInt(4); lines > 0; lines -= 1) {
+                int start = random.nextInt(ENGLISH.length());
+                input.append(ENGLISH, start,
+                             random.nextInt(ENGLISH.length() - start + 1)
+                             + start)
+                    .append(terminators[random.nextInt(3)]);
+            }
+        }
+        String text = input.toString();
+        assertTrue(text.length() > LineProcessor.BUFFER_SIZE);
+        String expected = runMain(text);
+        assertEquals(expected, runMain(text, "--parallel=3"));
+        assertEquals(expected, runMain(text, "--parallel=1"));
+    }
+
+    @Test
+    public void testMachineCopy() {
+        Reflector one = setReflector("B", NAVALA);
+        FixedRotor two = setFixed("Beta", NAVALA);
+        MovingRotor three = setRotor("III", NAVALA, "V");
+        MovingRotor four = setRotor("IV", NAVALA, "J");
+        MovingRotor five = setRotor("I", NAVALA, "Q");
+        Rotor[] addTo = new Rotor[]{one, two, three, four, five};
+        Collection<Rotor> coll = new ArrayList<Rotor>();
+        coll.addAll(Arrays.asList(addTo));
+        Machine cool = new Machine(UPPER, 5, 3, coll);
+        Machine copy = cool.copy();
+        String[] available = new String[]{"B", "Beta", "III", "IV", "I"};
+        Permutation plug = new Permutation("(HQ) (EX) (IP) (TR) (BY)", UPPER);
+        for (Machine m : new Machine[] { cool, copy }) {
+            m.insertRotors(available);
+            m.setRotors("AXLE");
+            m.setPlugboard(plug);
+        }
+        assertEquals("QVPQS OKOIL PUBKJ ZPISF XDW",
+                     cool.convert("FROM his shoulder Hiawatha"));
+        assertEquals("QVPQS OKOIL PUBKJ ZPISF XDW",
+                     copy.convert("FROM his shoulder Hiawatha"));
+        assertTrue(cool.getSlots()[4] != copy.getSlots()[4]);
+    }
+
+    @Test
+    public void testSplitConvert() throws Exception {
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < 100000; i += 1) {
+            msg.append(i % 7 == 0 ? ' ' : (char) ('A' + i * 31 % 26));
+        }
+        char[] in = msg.toString().toCharArray();
+        Machine seq = setMachine("AXLE", "(HQ) (EX)");
+        Machine par = setMachine("AXLE", "(HQ) (EX)");
+        String expected = seq.convert("ABC") + seq.convert(msg.toString());
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            char[] out = new char[in.length + in.length / 5 + 10];
+            int n = par.convert("ABC".toCharArray(), 0, 3, out, 0);
+            par.setGrouped(0);
+            n += new SplitConverter(pool, 5)
+                .convertMore(par, in, 0, in.length, out, n);
+            assertEquals(expected, new String(out, 0, n));
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(seq.convert("HELLOWORLD"), par.convert("HELLOWORLD"));
+    }
+
+    @Test
+    public void testAdvance() {
+        Rotor[] addTo = new Rotor[]{
+            setReflector("B", NAVALA), setFixed("Beta", NAVALA),
+            setRotor("VI", NAVALA, "ZM"), setRotor("II", NAVALA, "E"),
+            setRotor("VIII", NAVALA, "ZM")
+        };
+        String[] names = new String[]{"B", "Beta", "VI", "II", "VIII"};
+        Machine stepped = new Machine(UPPER, 5, 3, Arrays.asList(addTo));
+        stepped.insertRotors(names);
+        stepped.setRotors("AKDY");
+        Machine jumped = stepped.copy();
+        for (long n : new long[] { 0, 1, 3, 25, 26, 700, 20000 }) {
+            for (long i = 0; i < n; i += 1) {
+                stepped.step();
+            }
+            jumped.advance(n);
+            for (int i = 0; i < 5; i += 1) {
+                assertEquals(stepped.getSlots()[i].setting(),
+                             jumped.getSlots()[i].setting());
+            }
+        }
+    }
+
+    @Test
+    public void testAdvanceRandom() {
+        String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+        Random random = new Random(8);
+        for (int trial = 0; trial < 3000; trial += 1) {
+            int size = 2 + random.nextInt(30),
+                slots = 2 + random.nextInt(5),
+                pawls = random.nextInt(slots);
+            Alphabet alpha = new Alphabet(chars.substring(0, size));
+            Permutation identity = new Permutation("", alpha);
+            List<Rotor> rotors = new ArrayList<>();
+            String[] names = new String[slots];
+            for (int i = 0; i < slots; i += 1) {
+                names[i] = "R" + i;
+                if (i >= slots - pawls && random.nextInt(8) != 0) {
+                    StringBuilder notches = new StringBuilder();
+                    int density = 1 + random.nextInt(size);
+                    for (int k = 0; k < size; k += 1) {
+                        if (random.nextInt(density) == 0) {
+                            notches.append(alpha.toChar(k));
+                        }
+                    }
+                    rotors.add(new MovingRotor(names[i], identity,
+                                               notches.toString()));
+                } else {
+                    rotors.add(new FixedRotor(names[i], identity));
+                }
+            }
+            Machine stepped = new Machine(alpha, slots, pawls, rotors);
+            stepped.insertRotors(names);
+            for (int i = 0; i < slots; i += 1) {
+                stepped.getSlots()[i].set(random.nextInt(size));
+            }
+            Machine jumped = stepped.copy();
+            Machine.Snapshot start = jumped.snapshot();
+            long total = 0;
+            for (int k = 0; k < 3; k += 1) {
+                long n = random.nextInt(k == 0 ? 3000 : 100);
+                for (long i = 0; i < n; i += 1) {
+                    stepped.step();
+                }
+                total += n;
+                if (k == 2) {
+                    jumped.restore(start);
+                    n = total;
+                }
+                jumped.advance(n);
+                for (int i = 0; i < slots; i += 1) {
+                    assertEquals(msg("advance", "trial %d", trial),
+                                 stepped.getSlots()[i].setting(),
+                                 jumped.getSlots()[i].setting());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSharedRotors() {
+        Rotor[] addTo = new Rotor[]{
+            setReflector("B", NAVALA), setFixed("Beta", NAVALA),
+            setRotor("III", NAVALA, "V"), setRotor("IV", NAVALA, "J"),
+            setRotor("I", NAVALA, "Q")
+        };
+        String[] names = new String[]{"B", "Beta", "III", "IV", "I"};
+        Machine first = new Machine(UPPER, 5, 3, Arrays.asList(addTo));
+        Machine second = new Machine(UPPER, 5, 3, Arrays.asList(addTo));
+        first.insertRotors(names);
+        second.insertRotors(names);
+        first.setRotors("AXLE");
+        second.setRotors("AXLE");
+        Permutation plug = new Permutation("(HQ) (EX) (IP) (TR) (BY)", UPPER);
+        first.setPlugboard(plug);
+        second.setPlugboard(plug);
+        assertEquals("QVPQS OKOIL PUBKJ ZPISF XDW",
+                     first.convert("FROM his shoulder Hiawatha"));
+        assertEquals("QVPQS OKOIL PUBKJ ZPISF XDW",
+                     second.convert("FROM his shoulder Hiawatha"));
+    }
+
+    @Test
+    public void testMachineState() {
+        Machine cool = setMachine("AXLE", "(HQ) (EX) (IP) (TR) (BY)");
+        MachineSpec spec = new MachineSpec(cool);
+        MachineState state = spec.newState();
+        state.setRotors("AXLE");
+        state.setPlugboard(new Permutation("(HQ) (EX) (IP) (TR) (BY)",
+                                           UPPER));
+        MachineState other = state.copy();
+        String input = "FROMHISSHOULDERHIAWATHA";
+        StringBuilder output = new StringBuilder();
+        for (char c : input.toCharArray()) {
+            output.append(state.convert(c));
+        }
+        assertEquals("QVPQSOKOILPUBKJZPISFXDW", output.toString());
+        assertEquals('Q', other.convert('F'));
+        other.advance(input.length() - 1);
+        assertArrayEquals(state.positions(), other.positions());
+    }
+
+    @Test
+    public void testKeystreamTable() {
+        Machine cool = setMachine("AXLE", "(HQ) (EX) (IP) (TR) (BY)");
+        MachineState state = new MachineSpec(cool).newState();
+        state.setRotors("AEDQ");
+        state.setPlugboard(new Permutation("(HQ) (EX)", UPPER));
+        KeystreamTable table = new KeystreamTable(state);
+        assertTrue(table.period() <= 26 * 26 * 26);
+        for (long k = 0; k < 3 * table.period(); k += 1) {
+            int c = (int) (k * 7 % 26);
+            assertEquals(state.convert(c), table.convert(k, c));
+        }
+    }
+
+    /** A sample of English text for tests of cryptanalysis. */
+    private static final String ENGLISH =
+        "ITWASTHEBESTOFTIMESITWASTHEWORSTOFTIMESITWASTHEAGEOFWISDOM"
+        + "ITWASTHEAGEOFFOOLISHNESSITWASTHEEPOCHOFBELIEFITWASTHEEPOCH"
+        + "OFINCREDULITYITWASTHESEASONOFLIGHTITWASTHESEASONOFDARKNESS"
+        + "ITWASTHESPRINGOFHOPEITWASTHEWINTEROFDESPAIR";
+
+    @Test
+    public void testKeySearch() {
+        Rotor[] addTo = new Rotor[]{
+            setReflector("B", NAVALA), setFixed("Beta", NAVALA),
+            setRotor("I", NAVALA, "Q"), setRotor("II", NAVALA, "E"),
+            setRotor("III", NAVALA, "V")
+        };
+        Machine m = new Machine(UPPER, 3, 1, Arrays.asList(addTo));
+        assertEquals(3, KeySearch.orders(m).size());
+        m.insertRotors(new String[]{"B", "Beta", "II"});
+        m.setRotors("QX");
+        m.setPlugboard(new Permutation("", UPPER));
+        String cipher = m.convert(ENGLISH);
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            KeySearch search = new KeySearch(m, pool);
+            List<KeySearch.Candidate> best = search.search(cipher, 200, 5);
+            assertEquals(5, best.size());
+            assertEquals("* B Beta II QX", best.get(0).toString());
+            assertTrue(best.get(0).score() >= best.get(1).score());
+            assertEquals(3 * 26 * 26, search.tested());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Return a machine with an alphabet of SIZE characters and SLOTS
+     *  slots, all but the reflector's with pawls, each holding its own
+     *  identity rotor. */
+    private static Machine hugeMachine(int size, int slots) {
+        StringBuilder chars = new StringBuilder();
+        for (int i = 0; i < size; i += 1) {
+            chars.append((char) ('\u0100' + i));
+        }
+        Alphabet alpha = new Alphabet(chars.toString());
+        ArrayList<Rotor> rotors = new ArrayList<>();
+        rotors.add(new Reflector("R", new Permutation("", alpha)));
+        for (int i = 1; i < slots; i += 1) {
+            rotors.add(new MovingRotor("M" + i, new Permutation("", alpha),
+                                       ""));
+        }
+        return new Machine(alpha, slots, slots - 1, rotors);
+    }
+
+    @Test
+    public void testKeySearchTooLarge() {
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            new KeySearch(hugeMachine(600, 8), pool);
+            fail("keyspace overflow not reported");
+        } catch (EnigmaException excp) {
+            assertEquals("keyspace too large to search", excp.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testBombeTooLarge() {
+        Machine m = hugeMachine(600, 8);
+        String text = "\u0100\u0102\u0104\u0106";
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            new Bombe(m, text, "\u0102\u0104", 0).run(pool);
+            fail("keyspace overflow not reported");
+        } catch (EnigmaException excp) {
+            assertEquals("keyspace too large to search", excp.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testBombe() {
+        Rotor[] addTo = new Rotor[]{
+            setReflector("B", NAVALA), setFixed("Beta", NAVALA),
+            setRotor("I", NAVALA, "Q"), setRotor("II", NAVALA, "E"),
+            setRotor("III", NAVALA, "V")
+        };
+        Machine m = new Machine(UPPER, 4, 2, Arrays.asList(addTo));
+        m.insertRotors(new String[]{"B", "Beta", "III", "I"});
+        m.setRotors("AQX");
+        m.setPlugboard(new Permutation("(IT) (WS) (EO)", UPPER));
+        String cipher = m.convert(ENGLISH).replace(" ", "");
+        String crib = ENGLISH.substring(10, 40);
+        assertTrue(Bombe.alignments(m, cipher, crib).contains(10));
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        boolean found = false;
+        try {
+            for (Bombe.Stop stop : new Bombe(m, cipher, crib, 10).run(pool)) {
+                if (stop.toString().startsWith("* B Beta III I AQX")) {
+                    found = true;
+                    Machine check = m.copy();
+                    LineProcessor.setUp(check, stop.toString());
+                    assertEquals(crib, check.convert(cipher)
+                                 .replace(" ", "").substring(10, 40));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertTrue(found);
+    }
+
+    @Test
+    public void testPlugboardSolver() {
+        Machine m = setMachine("AXLE", "(HQ) (EX) (IP) (TR) (BY)");
+        String cipher = m.convert(ENGLISH + ENGLISH);
+        m.setRotors("AXLE");
+        PlugboardSolver solver = new PlugboardSolver(m, cipher);
+        solver.setMaxPairs(10);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            PlugboardSolver.Solution best = solver.solve(
+                PlugboardSolver.Scorer.bigrams(UPPER, ENGLISH), 8, 20000,
+                0, 1, pool);
+            m.setRotors("AXLE");
+            m.setPlugboard(new Permutation(best.plugboard(), UPPER));
+            assertEquals(ENGLISH + ENGLISH,
+                         m.convert(cipher).replace(" ", ""));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompiledConfig() throws IOException {
+        Machine m = setMachine("AXLE", "(HQ) (EX)");
+        Path file = Files.createTempFile("enigma", ".bin");
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            CompiledConfig.write(m, channel);
+            assertTrue(CompiledConfig.isCompiled(channel));
+            Machine loaded = CompiledConfig.read(channel);
+            assertEquals(5, loaded.numRotors());
+            assertEquals(3, loaded.numPawls());
+            loaded.insertRotors(new String[]{"B", "Beta", "III", "IV", "I"});
+            loaded.setRotors("AXLE");
+            loaded.setPlugboard(new Permutation("(HQ) (EX)", UPPER));
+            assertEquals(m.convert(ENGLISH), loaded.convert(ENGLISH));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testTextConfigLikeMagic() throws IOException {
+        String letters = "ENIGMABCDFHJKLOPQRSTUVWXYZ";
+        Alphabet alpha = new Alphabet(letters);
+        Rotor[] rotors = new Rotor[]{
+            new Reflector("B", new Permutation(NAVALA.get("B"), alpha)),
+            new FixedRotor("Beta",
+                           new Permutation(NAVALA.get("Beta"), alpha)),
+            new MovingRotor("III",
+                            new Permutation(NAVALA.get("III"), alpha), "V"),
+            new MovingRotor("IV",
+                            new Permutation(NAVALA.get("IV"), alpha), "J"),
+            new MovingRotor("I",
+                            new Permutation(NAVALA.get("I"), alpha), "Q")
+        };
+        Machine m = new Machine(alpha, 5, 3, Arrays.asList(rotors));
+        m.insertRotors(new String[]{"B", "Beta", "III", "IV", "I"});
+        m.setRotors("AXLE");
+        m.setPlugboard(new Permutation("", alpha));
+        assertEquals(m.convert(ENGLISH) + "\n",
+                     runConfig(letters + CONFIG.substring(letters.length()),
+                               "* B Beta III IV I AXLE\n" + ENGLISH + "\n"));
+    }
+
+    @Test
+    public void testServer() throws Exception {
+        Machine m = setMachine("AAAA", "");
+        String settings = "* B Beta III IV I AXLE (HQ) (EX) (IP) (TR) (BY)\n";
+        String expected = "QVPQS OKOIL PUBKJ ZPISF XDW" + LineProcessor.NEWLINE;
+        EnigmaServer server =
+            new EnigmaServer(m, EnigmaServer.address("0"), 2);
+        ExecutorService clients = Executors.newFixedThreadPool(4);
+        try {
+            server.start();
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i += 1) {
+                results.add(clients.submit(() -> {
+                    try (SocketChannel channel =
+                         SocketChannel.open(server.address())) {
+                        EnigmaServer.request(channel, settings
+                                             + "FROM his shoulder Hiawatha");
+                        return EnigmaServer.request(channel, settings
+                            + "FROM his shoulder Hiawatha");
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                assertEquals(expected, result.get());
+            }
+            try (SocketChannel channel =
+                 SocketChannel.open(server.address())) {
+                EnigmaServer.request(channel, "* B Beta III IV I AXL\nA");
+                fail("expected an error response");
+            } catch (EnigmaException excp) {
+                /* Expected. */
+            }
+        } finally {
+            clients.shutdownNow();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testMetrics() {
+        Metrics.Histogram hist = new Metrics.Histogram();
+        for (long v = 1; v <= 100; v += 1) {
+            hist.record(v);
+        }
+        assertEquals(100, hist.count());
+        assertEquals(50, hist.mean());
+        assertEquals(63, hist.quantile(.5));
+        assertEquals(127, hist.quantile(.99));
+        long before = Metrics.CHARS_CONVERTED.sum();
+        setMachine("AXLE", "").convert("FROM his shoulder Hiawatha");
+        assertTrue(Metrics.CHARS_CONVERTED.sum() - before >= 23);
+        assertTrue(Metrics.toJson().contains("\"CharsConverted\": "));
+        try {
+            new Metrics().invoke("reset", new Object[0], new String[0]);
+            fail("invoke should fail");
+        } catch (ReflectionException excp) {
+            assertTrue(excp.getTargetException()
+                       instanceof NoSuchMethodException);
+        }
+    }
+
+    @Test
+    public void testEnigmaStreams() throws IOException {
+        StringWriter grouped = new StringWriter();
+        try (Writer out = new GroupingWriter(
+                 new EnigmaWriter(grouped, setMachine("AXLE", "(HQ) (EX) "
+                                                      + "(IP) (TR) (BY)")))) {
+            out.write("FROM his ");
+            out.write("shoulder Hiawatha".toCharArray());
+            out.write('\n');
+        }
+        assertEquals("QVPQS OKOIL PUBKJ ZPISF XDW\n", grouped.toString());
+
+        Machine plain = setMachine("AXLE", "");
+        String expected = plain.convert(ENGLISH).replace(" ", "");
+        Reader in = new EnigmaReader(new StringReader(ENGLISH),
+                                     setMachine("AXLE", ""));
+        StringBuilder raw = new StringBuilder();
+        char[] buf = new char[7];
+        for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+            raw.append(buf, 0, n);
+        }
+        assertEquals(expected, raw.toString());
+
+        ByteArrayOutputStream cipher = new ByteArrayOutputStream();
+        try (OutputStream out = new EnigmaOutputStream(
+                 cipher, setMachine("AXLE", ""))) {
+            out.write("A MAN, A PLAN".getBytes(StandardCharsets.US_ASCII));
+        }
+        InputStream back = new EnigmaInputStream(
+            new ByteArrayInputStream(cipher.toByteArray()),
+            setMachine("AXLE", ""));
+        String text = new String(cipher.toByteArray(),
+                                 StandardCharsets.US_ASCII);
+        assertEquals(setMachine("AXLE", "").convert("AMANAPLAN"),
+                     text.replaceAll("[ ,]", "").replaceAll(".{5}", "$0 "));
+        assertEquals(", ", text.substring(5, 7));
+        assertEquals('A', back.read());
+        assertEquals(" MAN, A PLAN", new String(back.readAllBytes(),
+                                                StandardCharsets.US_ASCII));
+    }
+
+    /** A subscriber that requests one item at a time, collecting them,
+     *  and records how it was terminated. */
+    private static class Collector implements Flow.Subscriber<CharBuffer> {
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            _subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(CharBuffer item) {
+            _text.append(item);
+            _subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            _error = throwable;
+            _done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            _done.countDown();
+        }
+
+        /** Flow subscription. */
+        private Flow.Subscription _subscription;
+        /** Items received. */
+        private final StringBuilder _text = new StringBuilder();
+        /** Error received, if any. */
+        private volatile Throwable _error;
+        /** Released on termination. */
+        private final CountDownLatch _done = new CountDownLatch(1);
+    }
+
+    /** Return a Collector that has received the output of an
+     *  EnigmaProcessor, using a machine configured like setMachine's,
+     *  given INPUT in chunks of CHUNK characters. */
+    private Collector process(String input, int chunk) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Collector result = new Collector();
+        try (SubmissionPublisher<CharBuffer> source =
+             new SubmissionPublisher<>(pool, 2)) {
+            EnigmaProcessor stage =
+                new EnigmaProcessor(setMachine("AAAA", ""));
+            source.subscribe(stage);
+            stage.subscribe(result);
+            for (int i = 0; i < input.length(); i += chunk) {
+                source.submit(CharBuffer.wrap(input, i, Math.min(
+                    input.length(), i + chunk)));
+            }
+        }
+        assertTrue(result._done.await(10, TimeUnit.SECONDS));
+        pool.shutdownNow();
+        return result;
+    }
+
+    @Test
+    public void testEnigmaProcessor() throws Exception {
+        String settings = "* B Beta III IV I AXLE (HQ) (EX) (IP) (TR) (BY)\n";
+        String input = settings + "FROM his shoulder Hiawatha\n"
+            + settings + "FROM his shoulder Hiawatha\n";
+        String line = "QVPQS OKOIL PUBKJ ZPISF XDW" + LineProcessor.NEWLINE;
+        for (int chunk : new int[] { 1, 3, 1000 }) {
+            Collector result = process(input, chunk);
+            assertEquals(null, result._error);
+            assertEquals(line + line, result._text.toString());
+        }
+        Collector bad = process("* B Beta III IV I AXL\nFROM\n", 4);
+        assertTrue(bad._error instanceof EnigmaException);
+    }
+
+    @Test
+    public void testEnigmaProcessorBackpressure() throws IOException {
+        EnigmaProcessor stage = new EnigmaProcessor(setMachine("AAAA", ""));
+        long[] upstream = new long[1];
+        stage.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                upstream[0] += n;
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        List<String> received = new ArrayList<>();
+        Flow.Subscription[] downstream = new Flow.Subscription[1];
+        stage.subscribe(new Flow.Subscriber<CharBuffer>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                downstream[0] = subscription;
+            }
+
+            @Override
+            public void onNext(CharBuffer item) {
+                received.add(item.toString());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fail(throwable.toString());
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        assertEquals(0, upstream[0]);
+        downstream[0].request(1);
+        assertEquals(EnigmaProcessor.PREFETCH, upstream[0]);
+
+        StringWriter expected = new StringWriter();
+        LineProcessor lines =
+            new LineProcessor(setMachine("AAAA", ""), expected);
+        char[] first = "* B Beta III IV I AXLE\nFROM ".toCharArray(),
+            line = "his shoulder Hiawatha\n".toCharArray();
+        lines.process(first, 0, first.length);
+        stage.onNext(CharBuffer.wrap(first));
+        assertEquals(Arrays.asList(expected.toString()), received);
+        expected.getBuffer().setLength(0);
+        for (int i = 1; i < EnigmaProcessor.PREFETCH; i += 1) {
+            lines.process(line, 0, line.length);
+            stage.onNext(CharBuffer.wrap(line));
+        }
+        assertEquals(1, received.size());
+        assertEquals(EnigmaProcessor.PREFETCH, upstream[0]);
+
+        downstream[0].request(1);
+        assertEquals(2, received.size());
+        assertEquals(expected.toString(), received.get(1));
+        assertEquals(EnigmaProcessor.PREFETCH, upstream[0]);
+        downstream[0].request(1);
+        assertEquals(2 * EnigmaProcessor.PREFETCH, upstream[0]);
+    }
+
+    @Test
+    public void testSnapshot() {
+        Machine m = setMachine("AXLE", "(HQ) (EX) (IP) (TR) (BY)");
+        Machine.Snapshot start = m.snapshot();
+        String first = m.convert(ENGLISH);
+        Machine.Snapshot later = m.snapshot();
+        String more = m.convert(ENGLISH);
+        m.insertRotors(new String[]{"B", "Beta", "I", "II", "III"});
+        m.setPlugboard(new Permutation("", UPPER));
+        m.restore(start);
+        assertEquals(first, m.convert(ENGLISH));
+        m.restore(later);
+        assertEquals(more, m.convert(ENGLISH));
+
+        Random random = new Random(0);
+        Machine big = Benchmarks.machine(Benchmarks.alphabet(4096), 8,
+                                         random);
+        String msg = Benchmarks.message(big.alphabet(), 1000, random);
+        Machine.Snapshot snap = big.snapshot();
+        assertEquals(big.getSlots()[7].setting(), snap.position(7));
+        String result = big.convert(msg);
+        big.restore(snap);
+        assertEquals(result, big.convert(msg));
+    }
+
+    @Test
+    public void testCheckpoint() throws IOException {
+        byte[] input = ("* B Beta III IV I AXLE (HQ) (EX)\n" + ENGLISH + "\n"
+                        + "* B Beta I II III ZZZZ\r\n" + ENGLISH + "\n")
+            .getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        ByteWriter out = new ByteChannelWriter(Channels.newChannel(whole), 64);
+        LineProcessor lines = new LineProcessor(setMachine("AAAA", ""), out);
+        lines.process(ByteBuffer.wrap(input));
+        lines.finish();
+        out.flush();
+
+        Path file = Files.createTempFile("enigma", ".checkpoint");
+        try {
+            for (int split : new int[] { 10, 100, 260, 275, 300 }) {
+                ByteArrayOutputStream part = new ByteArrayOutputStream();
+                out = new ByteChannelWriter(Channels.newChannel(part), 64);
+                lines = new LineProcessor(setMachine("AAAA", ""), out);
+                lines.process(ByteBuffer.wrap(input, 0, split).slice());
+                out.flush();
+                lines.checkpoint(split, part.size()).write(file);
+
+                Checkpoint cp = Checkpoint.read(file);
+                assertEquals(split, cp.input());
+                lines = new LineProcessor(setMachine("AAAA", ""), out);
+                lines.restore(cp);
+                lines.process(ByteBuffer.wrap(input, split,
+                                              input.length - split).slice());
+                lines.finish();
+                out.flush();
+                assertArrayEquals(whole.toByteArray(), part.toByteArray());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testRangeDecryptor() throws IOException {
+        String settings = "* B Beta III IV I AXLE (HQ) (EX)";
+        Machine m = setMachine("AAAA", "");
+        LineProcessor.setUp(m, settings);
+        String cipher = m.convert(ENGLISH);
+        Path file = Files.createTempFile("enigma", ".txt");
+        try {
+            Files.write(file, ("\n" + settings + "\n" + cipher + "\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+            try (FileChannel in = FileChannel.open(file)) {
+                RangeDecryptor range =
+                    RangeDecryptor.open(setMachine("AAAA", ""), in);
+                int n = ENGLISH.length();
+                int[][] ranges = {
+                    { 0, n }, { 0, 1 }, { 4, 6 }, { 5, 10 }, { 123, 200 },
+                    { n - 1, n }, { 17, 17 }, { 0, 3 }
+                };
+                for (int[] r : ranges) {
+                    assertEquals(ENGLISH.substring(r[0], r[1]),
+                                 range.decrypt(r[0], r[1]));
+                }
+                assertEquals(6, RangeDecryptor.byteOffset(5));
+                try {
+                    range.decrypt(n - 1, n + 1);
+                    fail("range past end of message");
+                } catch (EnigmaException excp) {
+                    /* Expected. */
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testLaneEngine() {
+        MachineSpec spec = new MachineSpec(setMachine("AAAA", ""));
+        LaneEngine lanes = new LaneEngine(spec, 20);
+        MachineState[] states = new MachineState[20];
+        String[] msgs = new String[20];
+        for (int lane = 0; lane < 20; lane += 1) {
+            states[lane] = spec.newState();
+            states[lane].setRotors(ENGLISH.substring(lane, lane + 4));
+            states[lane].setPlugboard(new Permutation(
+                "(" + UPPER_STRING.substring(lane, lane + 2) + ")", UPPER));
+            lanes.setKey(lane, states[lane]);
+            msgs[lane] = ENGLISH.substring(0, 100 + 5 * lane);
+        }
+        String[] results = lanes.convert(msgs);
+        for (int lane = 0; lane < 20; lane += 1) {
+            StringBuilder expected = new StringBuilder();
+            for (char c : msgs[lane].toCharArray()) {
+                expected.append(states[lane].convert(c));
+            }
+            assertEquals(expected.toString(), results[lane]);
+            assertArrayEquals(states[lane].positions(),
+                              lanes.positions(lane));
+        }
+    }
+
     @Test
     public void testAlphabet() {
         Alphabet alph = new Alphabet("ABCDEFGHIJKLMNOPQRSTUVWXYZ");
@@ -112,4 +1080,28 @@ public class UnitTest {
         assertEquals(alph.toInt('Z'), 25);
         assertEquals(alph.toChar(25), 'Z');
     }
+
+    @Test
+    public void testSparseAlphabet() {
+        String chars = "AZ\u00e9\u4e00\u9fa5\uac00\uffef09";
+        Alphabet alph = new Alphabet(chars);
+        assertEquals(chars.length(), alph.size());
+        for (int i = 0; i < chars.length(); i += 1) {
+            assertEquals(i, alph.toInt(chars.charAt(i)));
+            assertEquals(chars.charAt(i), alph.toChar(i));
+        }
+        assertFalse(alph.contains('B'));
+        assertFalse(alph.contains('\u4e01'));
+        assertFalse(alph.contains('\u0000'));
+    }
+
+    @Test(expected = EnigmaException.class)
+    public void testNotInAlphabet() {
+        new Alphabet("AZ\u00e9\u4e00\u9fa5").toInt('\uffff');
+    }
+
+    @Test(expected = EnigmaException.class)
+    public void testSupplementaryAlphabet() {
+        new Alphabet("AZ\u4e00\ud83d\ude00");
+    }
 }